@@ -1,15 +1,54 @@
 import java.net.*;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 public class Assignment2cli {
-    private static final int BUFFER_SIZE = 1024; // Data upto 100MB is accepted, but we split it into buffers of 1KB
-    private static final int TIMEOUT_MS = 2000; // This is a cursory timeout between tries for ACK, incase server is "down"
-    private static final int MAX_RETRIES = 5; // Manually hardcoded retry limit of 5
+    private static final int BUFFER_SIZE = 1024; // Default payload per packet, the server may agree to something bigger
+    private static final int TIMEOUT_MS = 2000; // Starting retransmission timeout, until we have measured the round trip
+    static final int MIN_RTO_MS = 100; // Lower bound on the measured timeout, so ACK jitter doesn't cause spurious resends
+    static final int MAX_RTO_MS = 4000; // Upper bound on the timeout after exponential backoff
+    static final int MAX_RETRIES = 5; // Default retry limit per packet, each retry waits twice as long as the last
+    private static final int PROGRESS_MS = 1000; // Default interval between progress lines, 0 prints none
+    static final int DEFAULT_WINDOW = 32; // Most data packets we ever keep in flight, the congestion window stays below it
+    private static final int DEFAULT_PARALLEL = 8; // Files a batch uploads at once over its socket
+    private static final int DUP_THRESH = 3; // Packets SACKed past an unACKed one before we resend it without waiting for its timer
+    private static final long TIMER_TICK_NANOS = 1_000_000; // Resolution of the retransmission timers, a timer fires up to this late
+    private static final int TIMER_SLOTS = 512; // Ticks per turn of the timing wheel, longer timeouts just wait out more turns
+    private static final int PROBE_TIMEOUT_MS = 250; // A probe that takes longer than this is treated as dropped
+    private static final long END_LINGER_MS = 500; // How long a finished download stays to re-ACK an END whose ACK got lost
 
     public static void main(String[] args) {
-        if (args.length != 3) {
-            System.err.println("Usage: java Assignment2cli <server_ip> <port> <filename>");
+        if (args.length < 3) {
+            System.err.println("Usage: java Assignment2cli <server_ip> <port> <filename | directory | glob | @listfile> [--window=N]"
+                    + " [--payload=BYTES] [--probe-mtu] [--min-rto=MS] [--max-rto=MS] [--max-retries=N]"
+                    + " [--max-rate=BYTES_PER_SEC[K|M|G]] [--streams=N] [--no-integrity] [--compress] [--dedup] [--fec[=GROUP]]"
+                    + " [--parallel=N] [--progress-ms=MS]");
+            System.err.println("       java Assignment2cli <server_ip> <port> <filename on the server> --get [--output=FILE]"
+                    + " [--payload=BYTES] [--no-integrity] [--max-retries=N] [--max-rto=MS]");
             System.exit(1);
         }
 
@@ -19,76 +58,1763 @@ public class Assignment2cli {
         // Port of the ServerIP Address
         int port = parsePort(args[1]);
         String filename = args[2];
+        Map<String, String> options = Util.parseOptions(args, 3);
 
+        if (options.containsKey("get")) {
+            try {
+                download(serverIP, port, filename, new File(options.getOrDefault("output", new File(filename).getName())), options);
+            } catch (Exception e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+            return;
+        }
+
+        // A directory, a glob or a list of files is a batch, sent over one socket
         File file = new File(filename);
-        if (!file.exists() || !file.isFile()) {
+        boolean batch = file.isDirectory() || filename.startsWith("@") || filename.indexOf('*') >= 0 || filename.indexOf('?') >= 0;
+        if (!batch && !file.isFile()) {
             System.err.println("Error: File not found or not a regular file: " + filename);
             System.exit(1);
         }
 
-        try (DatagramSocket socket = new DatagramSocket();
-             FileInputStream fis = new FileInputStream(file)) {
+        try {
+            if (batch) {
+                List<File> files = listFiles(filename);
+                if (files.isEmpty()) {
+                    System.err.println("Error: No files to send in " + filename);
+                    System.exit(1);
+                }
+                uploadBatch(serverIP, port, files, options);
+            } else {
+                upload(serverIP, port, file, options);
+            }
+        } catch (SocketTimeoutException e) {
+            System.err.println("Timeout waiting for ACK from server. Transfer failed.");
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Uploads one file with the given options (the --name=value ones, without the dashes) and returns
+     * its stats once the server has acknowledged the end of it. Prints its progress just like main.
+     * Assignment2load runs many of these at once from one process.
+     */
+    static TransferStats upload(String serverIP, int port, File file, Map<String, String> options)
+            throws IOException, InterruptedException {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            InetSocketAddress server = new InetSocketAddress(InetAddress.getByName(serverIP), port);
+            // Connected, so data packets can be sent as gathering writes (header + file data).
+            // ACKs are read through the socket adaptor, which supports receive timeouts
+            channel.connect(server);
+            System.out.println("Connecting to server " + serverIP + ":" + port);
+            return upload(new Link(channel), server, file, options);
+        }
+    }
+
+    // One upload over the link, which may be one of a batch's
+    private static TransferStats upload(Link link, InetSocketAddress server, File file, Map<String, String> options)
+            throws IOException, InterruptedException {
+        int window = parsePositive(options.getOrDefault("window", String.valueOf(DEFAULT_WINDOW)), "window");
+        int requestedPayload = Math.min(parsePositive(options.getOrDefault("payload", String.valueOf(BUFFER_SIZE)), "payload"), Protocol.MAX_PAYLOAD);
+        int minRto = parsePositive(options.getOrDefault("min-rto", String.valueOf(MIN_RTO_MS)), "min-rto");
+        int maxRto = parsePositive(options.getOrDefault("max-rto", String.valueOf(MAX_RTO_MS)), "max-rto");
+        int maxRetries = parsePositive(options.getOrDefault("max-retries", String.valueOf(MAX_RETRIES)), "max-retries");
+        double maxRate = options.containsKey("max-rate") ? parseRate(options.get("max-rate")) : 0;
+        int streams = parsePositive(options.getOrDefault("streams", "1"), "streams");
+        long progressMs = Long.parseLong(options.getOrDefault("progress-ms", String.valueOf(PROGRESS_MS)));
+
+        // Every stream is its own path through the network, with its own RTT, window and share of the rate limit.
+        // Stream 0 is the main one, which also does the handshake and the end signal
+        RttEstimator[] rtts = new RttEstimator[streams];
+        CongestionControl[] ccs = new CongestionControl[streams];
+        Pacer[] pacers = new Pacer[streams];
+        for (int i = 0; i < streams; i++) {
+            rtts[i] = new RttEstimator(minRto, maxRto, maxRetries);
+            ccs[i] = new CongestionControl(window);
+            pacers[i] = new Pacer(maxRate / streams);
+        }
+        RttEstimator rtt = rtts[0];
+
+        InetAddress serverAddress = server.getAddress();
+        int port = server.getPort();
+        System.out.println("Sending file: " + file.getPath() + " (" + file.length() + " bytes)");
+
+        // A batch probes once for all its files, before it starts sharing the socket
+        if (options.containsKey("probe-mtu") && link.transfer == 0) {
+            requestedPayload = probePayloadSize(link.channel.socket(), serverAddress, port);
+            System.out.println("MTU probe picked a payload of " + requestedPayload + " bytes");
+            // A parity packet is a whole payload plus its group descriptor, and has to get through too
+            if (options.containsKey("fec")) requestedPayload = Math.max(1, requestedPayload - Protocol.PARITY_DESCRIPTOR);
+        }
 
-            socket.setSoTimeout(TIMEOUT_MS);
-            InetAddress serverAddress = InetAddress.getByName(serverIP);
+        // We send the filename meta data before the file, along with the payload size we would like
+        // and an id for this exact file, so the server can recognise an upload it already has part of.
+        // The attempt is this run's own, so our other streams join our upload and not someone else's of the same file.
+        // The server answers with the payload size it agreed to
+        String handshake = file.getName() + "\npayload=" + requestedPayload
+                + "\nid=" + transferId(file) + "\nattempt=" + UUID.randomUUID() + "\nsize=" + file.length()
+                + (options.containsKey("no-integrity") ? "" : "\nintegrity=1")
+                + (options.containsKey("compress") ? "\ncompress=deflate" : "")
+                + (options.containsKey("dedup") ? "\ndedup=1" : "")
+                + (options.containsKey("fec") ? "\nfec=1" : "");
+        ByteBuffer reply = sendWithAck(link, Protocol.OP_START, handshake.getBytes(StandardCharsets.UTF_8), "filename", rtt);
+        int payloadSize = reply.remaining() >= 4 ? reply.getInt() : BUFFER_SIZE;
+        // A server running a port range per receive shard tells us which of its ports owns our upload
+        if (reply.remaining() >= 4) link.follow(new InetSocketAddress(serverAddress, reply.getInt()));
+        // ...and which byte ranges it already has from an earlier attempt at this upload
+        long[] received = readRanges(reply);
+        if (received.length > 0) {
+            System.out.println("Resuming upload, server already has " + rangeBytes(received) + " bytes");
+        }
+        // ...and whether it will check every packet's CRC32C and the whole file's SHA-256
+        int flags = reply.remaining() >= 4 ? reply.getInt() : 0;
+        boolean integrity = (flags & Protocol.FLAG_INTEGRITY) != 0;
+        // ...and whether it takes deflated chunks. Every stream compresses its own
+        Compressor[] compressors = new Compressor[streams];
+        for (int i = 0; i < streams && (flags & Protocol.FLAG_COMPRESS) != 0; i++) compressors[i] = new Compressor();
+
+        boolean dedup = (flags & Protocol.FLAG_DEDUP) != 0;
+        // ...and whether it rebuilds lost packets from parity. A fixed group size, or 0 to follow the loss rate
+        int fecGroup = (flags & Protocol.FLAG_FEC) == 0 ? -1 : "true".equals(options.get("fec")) ? 0
+                : Math.min(Math.max(parsePositive(options.get("fec"), "fec"), Fec.MIN_GROUP), Protocol.MAX_PARITY_GROUP);
+
+        TransferStats stats = new TransferStats(file.length());
+        byte[] end = new byte[0]; // The END packet, with integrity on it carries the file's digest
+        try (FileSource source = new FileSource(file, payloadSize)) {
+            System.out.println("Using " + payloadSize + " byte packets" + (source.isMapped() ? " from a memory-mapped file" : "")
+                    + (streams > 1 ? " over " + streams + " streams" : "") + (integrity ? " with integrity checks" : "")
+                    + (compressors[0] != null ? " and compression" : "") + (dedup ? " and deduplication" : "")
+                    + (fecGroup >= 0 ? " and parity packets" : ""));
+            // The server copies every block it already has from earlier uploads, and we skip those like resumed ranges
+            if (dedup) {
+                long[] known = sendManifest(link, source, payloadSize, rtt);
+                System.out.println("Server already had " + rangeBytes(known) + " bytes in its chunk store");
+                received = mergeRanges(received, known);
+            }
+
+            // Send file data in payloadSize packets, keeping up to cwnd of them in flight at once on every stream
+            stats.acked.set(rangeBytes(received));
+            stats.register("Assignment2cli:type=Transfer,file=" + ObjectName.quote(file.getName())
+                    + (link.transfer != 0 ? ",transfer=" + link.transfer : ""));
+            if (progressMs > 0) stats.startReporting(progressMs);
+            // The file's digest is worked out on another thread while we send
+            FileSource digestView = source.duplicate();
+            CompletableFuture<String> digest = integrity ? CompletableFuture.supplyAsync(digestView::sha256) : null;
+            if (streams == 1) {
+                sendWindowed(link, source, payloadSize, integrity, compressors[0], fecGroup, 0, source.length(), received,
+                        rtt, ccs[0], pacers[0], stats);
+            } else {
+                sendStreams(link, server, handshake, source, payloadSize,
+                        integrity, compressors, fecGroup, received, rtts, ccs, pacers, stats);
+            }
+            if (digest != null) end = digest.join().getBytes(StandardCharsets.US_ASCII);
+        } finally {
+            stats.close();
+        }
+        long totalBytesSent = stats.acked.get();
+
+        // Send file is complete and we wait for Ack, that way we know it was sent to the right place
+        // and downloaded. Other wise we retry (look below)
+        sendWithAck(link, Protocol.OP_END, end, "end signal", rtt);
+
+
+        System.out.println("File transfer completed successfully! Total bytes: " + totalBytesSent);
+        System.out.println(stats);
+        for (int i = 0; i < streams; i++) {
+            String prefix = streams > 1 ? "Stream " + i + " " : "";
+            System.out.println(prefix + rtts[i]);
+            System.out.println(prefix + ccs[i]);
+            if (compressors[i] != null) System.out.println(prefix + compressors[i]);
+        }
+        return stats;
+    }
+
+    /**
+     * Uploads every file over one socket, up to --parallel of them at a time, each with the given
+     * options. Files are numbered as they start, and the server tells them apart by that number.
+     * A batch never splits a file over several streams. Returns how many files made it.
+     */
+    static int uploadBatch(String serverIP, int port, List<File> files, Map<String, String> options)
+            throws IOException, InterruptedException {
+        int parallel = parsePositive(options.getOrDefault("parallel", String.valueOf(DEFAULT_PARALLEL)), "parallel");
+        Map<String, String> fileOptions = new HashMap<>(options);
+        fileOptions.remove("streams");
+        fileOptions.remove("probe-mtu");
+        fileOptions.putIfAbsent("progress-ms", "0"); // one line per file is plenty
+        InetSocketAddress server = new InetSocketAddress(InetAddress.getByName(serverIP), port);
+        System.out.println("Connecting to server " + serverIP + ":" + port);
+        System.out.println("Sending " + files.size() + " files, " + Math.min(parallel, files.size()) + " at a time");
+
+        long startedAt = System.nanoTime();
+        int completed = 0;
+        long bytes = 0;
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(parallel, files.size()));
+        try (Batch batch = new Batch()) {
+            if (options.containsKey("probe-mtu")) {
+                int payload = probePayloadSize(batch.channel.socket(), server.getAddress(), port);
+                System.out.println("MTU probe picked a payload of " + payload + " bytes");
+                if (options.containsKey("fec")) payload = Math.max(1, payload - Protocol.PARITY_DESCRIPTOR);
+                fileOptions.put("payload", String.valueOf(payload));
+            }
+            batch.start(server);
+            List<Future<TransferStats>> uploads = new ArrayList<>();
+            for (File file : files) {
+                uploads.add(workers.submit(() -> {
+                    try (Link link = batch.open()) {
+                        return upload(link, server, file, fileOptions);
+                    }
+                }));
+            }
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    bytes += uploads.get(i).get().acked.get();
+                    completed++;
+                } catch (ExecutionException e) {
+                    System.err.println("Upload of " + files.get(i).getPath() + " failed: " + e.getCause().getMessage());
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+        System.out.printf("Batch: %d of %d files sent (%d bytes) in %.2fs, %.2f MB/s%n", completed, files.size(), bytes,
+                seconds, bytes / seconds / (1024 * 1024));
+        return completed;
+    }
+
+    /**
+     * Downloads a file from the server into target. It is an upload turned around: the server runs the
+     * same sliding window sender from a socket of its own (its GET ACK says which port, and it starts
+     * once we ACK that from here), and we receive. Every packet is written straight to its offset in a
+     * hidden temporary file next to the target, and whatever arrived in one go is ACKed together, with a
+     * cumulative point and SACK ranges just like the server's ACKs, so the sender's fast retransmit works
+     * the same both ways. With integrity on every packet carries a CRC32C, and one that fails it is NACKed.
+     * The server only sends its END once all the data is ACKed, so then the file is complete and renamed
+     * to the target. A download that fails deletes its temporary file. Returns the size.
+     */
+    static long download(String serverIP, int port, String name, File target, Map<String, String> options) throws IOException {
+        int requestedPayload = Math.min(parsePositive(options.getOrDefault("payload", String.valueOf(BUFFER_SIZE)), "payload"), Protocol.MAX_PAYLOAD);
+        int minRto = parsePositive(options.getOrDefault("min-rto", String.valueOf(MIN_RTO_MS)), "min-rto");
+        int maxRto = parsePositive(options.getOrDefault("max-rto", String.valueOf(MAX_RTO_MS)), "max-rto");
+        int maxRetries = parsePositive(options.getOrDefault("max-retries", String.valueOf(MAX_RETRIES)), "max-retries");
+        RttEstimator rtt = new RttEstimator(minRto, maxRto, maxRetries);
 
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            InetSocketAddress server = new InetSocketAddress(InetAddress.getByName(serverIP), port);
+            channel.connect(server);
             System.out.println("Connecting to server " + serverIP + ":" + port);
-            System.out.println("Sending file: " + filename + " (" + file.length() + " bytes)");
+            Link link = new Link(channel);
+            String request = name + "\npayload=" + requestedPayload + (options.containsKey("no-integrity") ? "" : "\nintegrity=1");
+            // The server answers with the payload size, the file's size, the port it sends from and the agreed features
+            ByteBuffer reply = sendWithAck(link, Protocol.OP_GET, request.getBytes(StandardCharsets.UTF_8), "download request", rtt);
+            if (reply.remaining() < 20) throw new IOException("[DOWNLOAD FAILED] The server's answer to the download request is too short");
+            int payloadSize = reply.getInt();
+            long size = reply.getLong();
+            int dataPort = reply.getInt();
+            boolean integrity = (reply.getInt() & Protocol.FLAG_INTEGRITY) != 0;
+            if (payloadSize <= 0 || payloadSize > Protocol.MAX_PAYLOAD || size < 0 || dataPort <= 0 || dataPort > 65535) {
+                throw new IOException("[DOWNLOAD FAILED] The server's answer to the download request makes no sense");
+            }
+            link.follow(new InetSocketAddress(server.getAddress(), dataPort));
+            System.out.println("Receiving file: " + name + " (" + size + " bytes) as " + target.getPath() + ", " + payloadSize
+                    + " byte packets" + (integrity ? " with integrity checks" : ""));
 
-            // We send the filename meta data before the file
-            sendWithAck(socket, serverAddress, port, ("META:FILENAME:" + file.getName()).getBytes(StandardCharsets.UTF_8), "filename");
+            long startedAt = System.nanoTime();
+            File part = new File(target.getAbsoluteFile().getParentFile(), "." + target.getName() + ".part");
+            DownloadStats stats;
+            try (FileChannel out = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                 Selector selector = Selector.open()) {
+                // Full size up front, so the packets land inside the file instead of growing it
+                if (size > 0) out.write(ByteBuffer.allocate(1), size - 1);
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ);
+                stats = receiveDownload(channel, selector, out, size, payloadSize, integrity, rtt, (long) maxRto * (maxRetries + 1));
+                Files.move(part.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException | RuntimeException e) {
+                // Never leave half a file behind, a new download starts from scratch anyway
+                Files.deleteIfExists(part.toPath());
+                throw e;
+            }
+            double seconds = (System.nanoTime() - startedAt) / 1e9;
+            System.out.println("File download completed successfully! Total bytes: " + size);
+            System.out.printf("Download stats: %.2f MB/s, %d packets, %d duplicates, %d nacks, %d acks%n",
+                    size / seconds / (1024 * 1024), stats.packets, stats.duplicates, stats.nacks, stats.acks);
+            return size;
+        }
+    }
 
-            // Send file data in a buffer, I have predefined it to 1024 which should be sufficient < 100MB
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int bytesRead;
-            long totalBytesSent = 0;
+    // Counters of one download, printed once it is done
+    private static final class DownloadStats {
+        long packets;
+        long duplicates;
+        long nacks;
+        long acks;
+    }
+
+    // The receive loop of a download, until the server's END (and a little after it, in case our ACK of it is lost).
+    // Until the server's first packet arrives we keep ACKing its GET ACK from here, which is what it waits for to start
+    private static DownloadStats receiveDownload(DatagramChannel channel, Selector selector, FileChannel out, long size,
+                                                 int payloadSize, boolean integrity, RttEstimator rtt, long quietLimitMs)
+            throws IOException {
+        int headerSize = Protocol.HEADER_SIZE + (integrity ? Protocol.CRC_SIZE : 0);
+        ByteBuffer packet = ByteBuffer.allocateDirect(headerSize + payloadSize);
+        ByteBuffer reply = ByteBuffer.allocateDirect(Protocol.MAX_ACK_SIZE);
+        CRC32C checksum = integrity ? new CRC32C() : null;
+        BitSet arrived = new BitSet(); // by sequence number, the server numbers the packets from 0 in file order
+        DownloadStats stats = new DownloadStats();
+        long written = 0;
+        long lastHeard = System.nanoTime();
+        long endedAt = 0; // when the END arrived, 0 before
+        boolean started = false; // whether anything came from the server's port yet
+        long readyAt = 0; // when we last ACKed the GET ACK
 
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                byte[] chunk = new byte[bytesRead];
-                System.arraycopy(buffer, 0, chunk, 0, bytesRead);
-                sendWithAck(socket, serverAddress, port, chunk, "data");
-                totalBytesSent += bytesRead;
-                double progress = (totalBytesSent / (double) file.length()) * 100;
-                System.out.printf("Sent %d bytes (%.2f%%)\n", totalBytesSent, progress);
+        while (true) {
+            long now = System.nanoTime();
+            long waitMs = endedAt != 0 ? END_LINGER_MS - (now - endedAt) / 1_000_000 : quietLimitMs - (now - lastHeard) / 1_000_000;
+            if (waitMs <= 0) {
+                if (endedAt != 0) return stats;
+                throw new IOException("[DOWNLOAD FAILED] Nothing from the server for " + quietLimitMs + "ms");
+            }
+            if (!started) {
+                if (readyAt == 0 || now - readyAt >= rtt.rtoNanos()) {
+                    reply.clear();
+                    channel.write(Protocol.putHeader(reply, Protocol.OP_ACK, 0, Protocol.CONTROL_SEQ, 0, Protocol.OP_GET).flip());
+                    readyAt = now;
+                }
+                waitMs = Math.min(waitMs, toTimeoutMillis(readyAt + rtt.rtoNanos() - now));
+            }
+            selector.select(waitMs);
+            selector.selectedKeys().clear();
+            boolean gotData = false;
+            while (channel.receive(packet.clear()) != null) {
+                packet.flip();
+                lastHeard = System.nanoTime();
+                if (packet.remaining() < Protocol.HEADER_SIZE || packet.getShort(0) != Protocol.MAGIC || packet.get(Protocol.VERSION_AT) != Protocol.VERSION) continue;
+                started = true;
+                int seq = packet.getInt(Protocol.SEQ_AT);
+                if (packet.get(Protocol.OPCODE_AT) == Protocol.OP_END) {
+                    // Sent once every data packet is ACKed, so we have the whole file
+                    if (written < size) continue;
+                    if (endedAt == 0) endedAt = lastHeard;
+                    reply.clear();
+                    channel.write(Protocol.putHeader(reply, Protocol.OP_ACK, 0, Protocol.CONTROL_SEQ, 0, Protocol.OP_END).flip());
+                    continue;
+                }
+                if (packet.get(Protocol.OPCODE_AT) != Protocol.OP_DATA) continue;
+                long offset = packet.getLong(Protocol.OFFSET_AT);
+                int length = packet.remaining() - headerSize;
+                if (length < 0 || seq < 0 || offset < 0 || offset + length > size) continue;
+                if (checksum != null) {
+                    checksum.reset();
+                    checksum.update(packet.limit(Protocol.HEADER_SIZE));
+                    checksum.update(packet.limit(headerSize + length).position(headerSize));
+                    if ((int) checksum.getValue() != packet.getInt(Protocol.HEADER_SIZE)) {
+                        // Corrupted on the way, the server resends it straight away
+                        stats.nacks++;
+                        reply.clear();
+                        channel.write(Protocol.putHeader(reply, Protocol.OP_NACK, 0, seq, 0, Protocol.OP_DATA).flip());
+                        continue;
+                    }
+                }
+                stats.packets++;
+                gotData = true;
+                if (arrived.get(seq)) {
+                    stats.duplicates++; // our ACK of it got lost
+                    continue;
+                }
+                packet.position(headerSize);
+                while (packet.hasRemaining()) out.write(packet, offset + packet.position() - headerSize);
+                arrived.set(seq);
+                written += length;
+            }
+            if (!gotData) continue;
+            // One ACK for everything that arrived together: the cumulative point, then the runs above it
+            int cumulative = arrived.nextClearBit(0);
+            reply.clear();
+            Protocol.putHeader(reply, Protocol.OP_ACK, 0, cumulative, 0, Protocol.OP_DATA);
+            int countAt = reply.position();
+            reply.putInt(0);
+            int ranges = 0;
+            for (int start = arrived.nextSetBit(cumulative); start >= 0 && ranges < Protocol.MAX_SACK_RANGES; start = arrived.nextSetBit(start)) {
+                int end = arrived.nextClearBit(start);
+                reply.putInt(start).putInt(end);
+                ranges++;
+                start = end;
             }
+            reply.putInt(countAt, ranges);
+            channel.write(reply.flip());
+            stats.acks++;
+        }
+    }
 
-            // Send file is complete and we wait for Ack, that way we know it was sent to the right place
-            // and downloaded. Other wise we retry (look below)
-            sendWithAck(socket, serverAddress, port, "META:END".getBytes(StandardCharsets.UTF_8), "end signal");
+    /**
+     * The files a batch argument stands for: every regular file under a directory, the files in a
+     * directory that match a glob in the last part of the path, or the files listed one per line in
+     * "@listfile". Sorted by path, except for a list, which keeps its order.
+     */
+    static List<File> listFiles(String spec) throws IOException {
+        List<File> files = new ArrayList<>();
+        if (spec.startsWith("@")) {
+            for (String line : Files.readAllLines(Path.of(spec.substring(1)), StandardCharsets.UTF_8)) {
+                if (line.isBlank()) continue;
+                File file = new File(line.trim());
+                if (!file.isFile()) throw new FileNotFoundException("Not a regular file: " + line.trim());
+                files.add(file);
+            }
+            return files;
+        }
+        Path path = Path.of(spec);
+        if (Files.isDirectory(path)) {
+            try (var walk = Files.walk(path)) {
+                walk.filter(Files::isRegularFile).sorted().forEach(file -> files.add(file.toFile()));
+            }
+            return files;
+        }
+        Path dir = path.getParent() != null ? path.getParent() : Path.of(".");
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + path.getFileName());
+        try (var list = Files.list(dir)) {
+            list.filter(file -> Files.isRegularFile(file) && matcher.matches(file.getFileName())).sorted()
+                    .forEach(file -> files.add(file.toFile()));
+        }
+        return files;
+    }
 
+    /**
+     * Splits the file into one contiguous range per stream (whole packets each) and sends them all at
+     * once: the main stream's range from this thread, every other range from its own thread and socket.
+     * Each extra socket joins the upload by repeating the handshake with its stream number. Returns
+     * once every range has been acknowledged, and fails if any stream does.
+     */
+    private static void sendStreams(Link main, InetSocketAddress server, String handshake, FileSource source,
+                                    int payloadSize, boolean integrity, Compressor[] compressors, int fecGroup, long[] received,
+                                    RttEstimator[] rtts, CongestionControl[] ccs,
+                                    Pacer[] pacers, TransferStats stats) throws IOException, InterruptedException {
+        int streams = rtts.length;
+        long chunks = (source.length() + payloadSize - 1) / payloadSize;
+        long rangeSize = (chunks + streams - 1) / streams * payloadSize;
+        ExecutorService senders = Executors.newFixedThreadPool(streams - 1);
+        try {
+            List<Future<?>> others = new ArrayList<>();
+            for (int i = 1; i < streams && i * rangeSize < source.length(); i++) {
+                int stream = i;
+                FileSource view = source.duplicate();
+                others.add(senders.submit(() -> {
+                    try (DatagramChannel channel = DatagramChannel.open()) {
+                        channel.connect(server);
+                        Link link = new Link(channel);
+                        byte[] join = (handshake + "\nstream=" + stream).getBytes(StandardCharsets.UTF_8);
+                        ByteBuffer reply = sendWithAck(link, Protocol.OP_START, join, "stream " + stream, rtts[stream]);
+                        if (reply.remaining() >= 8) link.follow(new InetSocketAddress(server.getAddress(), reply.getInt(reply.position() + 4)));
+                        long start = stream * rangeSize;
+                        sendWindowed(link, view, payloadSize, integrity, compressors[stream], fecGroup, start, Math.min(source.length(), start + rangeSize),
+                                received, rtts[stream], ccs[stream], pacers[stream], stats);
+                    }
+                    return null;
+                }));
+            }
+            sendWindowed(main, source, payloadSize, integrity, compressors[0], fecGroup, 0, Math.min(source.length(), rangeSize), received,
+                    rtts[0], ccs[0], pacers[0], stats);
+            for (Future<?> other : others) {
+                try {
+                    other.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                }
+            }
+        } finally {
+            senders.shutdownNow();
+        }
+    }
 
-            System.out.println("File transfer completed successfully! Total bytes: " + totalBytesSent);
+    /**
+     * Sends a control packet and waits for the server's ACK of it (one that answers its opcode, with CONTROL_SEQ).
+     * Late ACKs for data packets are ignored. Retries up to maxRetries times if no ACK is received,
+     * waiting one RTO for each attempt (which doubles every time it runs out).
+     * Returns whatever the server put in the ACK after the header.
+     */
+    static ByteBuffer sendWithAck(Link link, byte opcode, byte[] body, String stage, RttEstimator rtt) throws IOException {
+        byte[] ackBuf = new byte[Protocol.MAX_ACK_SIZE];
+        DatagramPacket ackPacket = new DatagramPacket(ackBuf, ackBuf.length);
 
-        } catch (SocketTimeoutException e) {
-            System.err.println("Timeout waiting for ACK from server. Transfer failed.");
-        } catch (Exception e) {
-            System.err.println("Error: " + e.getMessage());
-            e.printStackTrace();
+        for (int attempt = 1; attempt <= rtt.maxRetries; attempt++) {
+            link.send(opcode, body);
+            long sentAt = System.nanoTime();
+            long deadline = sentAt + rtt.rtoNanos();
+            try {
+                long remaining;
+                while ((remaining = deadline - System.nanoTime()) > 0) {
+                    link.receive(ackPacket, remaining);
+                    if (ackSeq(ackBuf) != Protocol.CONTROL_SEQ || answered(ackBuf) != opcode) continue;
+                    if (isNack(ackPacket)) {
+                        String reason = switch (opcode) {
+                            case Protocol.OP_GET -> "no such file";
+                            case Protocol.OP_START -> "not a file name it accepts";
+                            default -> "file failed verification";
+                        };
+                        throw new IOException("[SEND FAILED] Server rejected the " + stage + " (" + reason + ")");
+                    }
+                    if (isAck(ackPacket)) {
+                        if (attempt == 1) rtt.sample(System.nanoTime() - sentAt); // Karn: retried packets give ambiguous samples
+                        return ByteBuffer.wrap(ackBuf, Protocol.HEADER_SIZE, ackPacket.getLength() - Protocol.HEADER_SIZE); // ACK received, success
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // fall through to the retry message below
+            }
+            rtt.backoff();
+            rtt.retransmits++;
+            System.err.printf("[ATTEMPT FAILED....RETRYING] No ACK for %s (attempt %d/%d)...%n", stage, attempt, rtt.maxRetries);
+        }
+
+        throw new IOException("[SEND FAILED] No ACK received after " + rtt.maxRetries + " attempts for stage: " + stage);
+    }
+
+    /**
+     * Sliding window (selective repeat) sender. Every chunk goes out behind a header with its sequence
+     * number and file offset, and up to cwnd of them are in flight at once. The server ACKs a few at a
+     * time, with a cumulative point and SACK ranges, so when a packet times out only that packet is
+     * resent, not the whole window. A packet that DUP_THRESH later ones were SACKed past, and that
+     * is older than a round trip and a bit, is resent straight away (the server ACKs at once when it
+     * sees a gap), so a loss doesn't have to wait out the RTO. That bit grows each time the ACK of
+     * such a resend comes back too soon to be for it, so a path that reorders stops causing them.
+     * Every packet gets its own retransmission deadline from the current RTO when it is sent, on a
+     * hashed timing wheel, so arming and cancelling one is O(1) and a wait only runs until the earliest.
+     * New packets go out no faster than the pacer allows.
+     * The in-flight packets live in a fixed ring of reusable slots indexed by sequence number, and the
+     * data is sent straight out of the FileSource, so sending a packet allocates and copies nothing.
+     * Sends the part of the file from start to end, skipping byte ranges the server already has
+     * (received, as start/end pairs). Every ACKed byte is counted in stats, which streams share.
+     * With integrity on every packet carries a CRC32C, and one the server NACKs is resent right away.
+     * With a compressor, chunks that deflate well go out deflated (the pacer counts what is actually sent).
+     * With FEC (fecGroup 0 to adapt, or a fixed group size, -1 for none) every group of first sends is
+     * followed by its parity packet, and an ACK that says the server rebuilt a packet counts as a loss.
+     * Returns the number of bytes that were sent and acknowledged.
+     */
+    static long sendWindowed(Link link, ChunkSource source, int payloadSize, boolean integrity,
+                                     Compressor compressor, int fecGroup, long start, long end,
+                                     long[] received, RttEstimator rtt, CongestionControl cc, Pacer pacer,
+                                     TransferStats stats) throws IOException {
+        // Twice the window, so one stubborn packet doesn't stop newer ones from being sent
+        InFlight[] ring = new InFlight[Integer.highestOneBit(Math.max(1, 2 * cc.maxWindow - 1)) << 1];
+        for (int i = 0; i < ring.length; i++) ring[i] = new InFlight();
+        int mask = ring.length - 1;
+        TimingWheel<InFlight> timers = new TimingWheel<>(TIMER_TICK_NANOS, TIMER_SLOTS, System.nanoTime());
+        ByteBuffer[] parts = new ByteBuffer[2];
+        parts[0] = ByteBuffer.allocateDirect(Protocol.HEADER_SIZE + (integrity ? Protocol.CRC_SIZE : 0));
+        CRC32C checksum = integrity ? new CRC32C() : null;
+        Fec fec = fecGroup >= 0 ? new Fec(payloadSize, fecGroup, parts[0].capacity()) : null;
+        byte[] ackBuf = new byte[Protocol.MAX_ACK_SIZE];
+        DatagramPacket ackPacket = new DatagramPacket(ackBuf, ackBuf.length);
+        int[] sack = new int[2 * Protocol.MAX_SACK_RANGES];
+        long reorderNanos = 0; // extra time a packet gets to turn up late, grows when a fast retransmit turns out needless
+        int nextSeq = 0;
+        int oldestSeq = 0; // lowest sequence number that may still be unacknowledged
+        int inFlightCount = 0;
+        long nextOffset = skipReceived(received, start);
+        long totalBytesAcked = 0;
+        pacer.update(cc, rtt, Protocol.HEADER_SIZE + payloadSize);
+
+        while (nextOffset < end || inFlightCount > 0) {
+            // Top the window back up with fresh chunks from the file, as far as the pacer lets us
+            long paceDelay = 0;
+            while (nextOffset < end && inFlightCount < cc.window() && nextSeq - oldestSeq < ring.length) {
+                paceDelay = pacer.delayNanos(Protocol.HEADER_SIZE + payloadSize);
+                if (paceDelay > 0) break;
+
+                int length = (int) Math.min(payloadSize, end - nextOffset);
+                InFlight p = ring[nextSeq & mask];
+                p.reset(nextSeq++, nextOffset, length);
+                pacer.consume(stats.sent(p.send(link, parts, source, compressor, checksum, rtt, timers)));
+                nextOffset = skipReceived(received, nextOffset + length);
+                inFlightCount++;
+                if (fec != null) {
+                    // A group only covers contiguous chunks, so a skipped range ends it early
+                    if (!fec.continues(p.seq, p.offset)) pacer.consume(stats.parity(fec.sendParity(link, checksum)));
+                    fec.add(p.seq, p.offset, source.slice(p.offset, length));
+                    if (fec.isFull() || nextOffset >= end) pacer.consume(stats.parity(fec.sendParity(link, checksum)));
+                }
+            }
+            if (inFlightCount == 0) {
+                // Nothing to wait for an ACK of, just the pacer's tokens for the next packet
+                if (paceDelay > 0) LockSupport.parkNanos(paceDelay);
+                continue;
+            }
+
+            // Wait for ACKs until the first outstanding packet is due for a resend,
+            // or until the pacer has tokens for the next new packet
+            long now = System.nanoTime();
+            long wakeAt = now + (paceDelay > 0 ? paceDelay : rtt.rtoNanos());
+            long due = timers.nextDeadline();
+            if (due != Long.MAX_VALUE && due - wakeAt < 0) wakeAt = due;
+
+            if (wakeAt - now > 0) {
+                try {
+                    link.receive(ackPacket, wakeAt - now);
+                    // Replies to control packets (a late handshake ACK) and NACKed parity packets are no concern of the window
+                    if (answered(ackBuf) != Protocol.OP_DATA) continue;
+                    if (isNack(ackPacket)) {
+                        // Corrupted on the way, not lost, so there is nothing to back off from. Just send it again
+                        InFlight corrupt = ring[ackSeq(ackBuf) & mask];
+                        if (corrupt.active && corrupt.seq == ackSeq(ackBuf)) {
+                            if (corrupt.attempts >= rtt.maxRetries) {
+                                throw new IOException("[SEND FAILED] Data packet " + corrupt.seq + " failed its checksum " + rtt.maxRetries + " times");
+                            }
+                            rtt.retransmits++;
+                            stats.nacks.increment();
+                            stats.retransmits.increment();
+                            stats.sent(corrupt.send(link, parts, source, compressor, checksum, rtt, timers));
+                        }
+                        continue;
+                    }
+                    // An ACK covers everything below its cumulative point and in its SACK ranges,
+                    // a RECOVERED reply just the one packet it names
+                    boolean rebuilt = isRecovered(ackPacket);
+                    if (!isAck(ackPacket) && !rebuilt) continue;
+                    int cumulative = oldestSeq;
+                    int ranges = 1;
+                    if (rebuilt) {
+                        sack[0] = ackSeq(ackBuf);
+                        sack[1] = sack[0] + 1;
+                    } else {
+                        cumulative = ackSeq(ackBuf);
+                        ranges = readSack(ackBuf, ackPacket.getLength(), sack);
+                        stats.acks.increment();
+                    }
+                    now = System.nanoTime();
+                    InFlight newest = null; // the latest first send it covers gives the RTT sample
+                    int newlyAcked = 0;
+                    for (int seq = oldestSeq; seq != nextSeq; seq++) {
+                        InFlight acked = ring[seq & mask];
+                        if (!acked.active || seq - cumulative >= 0 && !inRanges(sack, ranges, seq)) continue;
+                        acked.active = false;
+                        timers.cancel(acked);
+                        inFlightCount--;
+                        newlyAcked++;
+                        if (rebuilt) {
+                            // Lost, but the parity made up for it. It tells the FEC about the loss rate, not the RTT
+                            fec.onLoss();
+                            stats.recovered.increment();
+                        } else if (acked.attempts == 1) {
+                            stats.ackLatency.record(now - acked.sentAt);
+                            if (newest == null || acked.sentAt - newest.sentAt > 0) newest = acked;
+                        } else if (acked.fastResent && now - acked.sentAt < rtt.minRttNanos / 2) {
+                            // Quicker than any round trip, so the ACK is for the first copy, which was only late. Allow more reordering
+                            reorderNanos = Math.min(Math.max(2 * reorderNanos, rtt.minRttNanos), rtt.rtoNanos());
+                            cc.undo();
+                        }
+                        cc.onAck();
+                        totalBytesAcked += acked.length;
+                        stats.acked.addAndGet(acked.length);
+                    }
+                    if (newlyAcked == 0) {
+                        stats.duplicateAcks.increment(); // nothing new, a resent packet's twin got there first
+                        continue;
+                    }
+                    while (oldestSeq != nextSeq && !ring[oldestSeq & mask].active) oldestSeq++;
+                    if (newest != null) rtt.sample(now - newest.sentAt);
+                    pacer.update(cc, rtt, Protocol.HEADER_SIZE + payloadSize);
+
+                    // A first send with DUP_THRESH packets SACKed past it, that has had a round trip and a quarter
+                    // to arrive, is lost and not just overtaken: resend it now rather than a whole RTO later.
+                    // With FEC the parity is likely to rebuild it instead
+                    if (rebuilt || fec != null || ranges == 0) continue;
+                    int sackedTo = sack[2 * ranges - 1];
+                    double reorderWindow = 1.25 * Math.max(rtt.srttNanos, 0) + reorderNanos;
+                    for (int seq = oldestSeq; sackedTo - seq > DUP_THRESH; seq++) {
+                        InFlight lost = ring[seq & mask];
+                        if (!lost.active || lost.attempts > 1 || now - lost.sentAt < reorderWindow) continue;
+                        cc.onLoss(seq, nextSeq);
+                        rtt.retransmits++;
+                        stats.retransmits.increment();
+                        stats.fastRetransmits.increment();
+                        pacer.consume(stats.sent(lost.send(link, parts, source, compressor, checksum, rtt, timers)));
+                        lost.fastResent = true;
+                    }
+                    continue;
+                } catch (SocketTimeoutException e) {
+                    now = System.nanoTime();
+                }
+            }
+
+            // Only the packets whose timer ran out are resent. One backoff per round of timeouts,
+            // otherwise a whole lost window would double the RTO straight up to the maximum
+            boolean timedOut = false;
+            InFlight p;
+            while ((p = timers.poll(now)) != null) {
+                if (p.attempts >= rtt.maxRetries) {
+                    throw new IOException("[SEND FAILED] No ACK received after " + rtt.maxRetries + " attempts for data packet " + p.seq);
+                }
+                if (!timedOut) {
+                    rtt.backoff();
+                    timedOut = true;
+                }
+                cc.onLoss(p.seq, nextSeq);
+                if (fec != null && p.attempts == 1) fec.onLoss();
+                System.err.printf("[ATTEMPT FAILED....RETRYING] No ACK for data packet %d (attempt %d/%d)...%n", p.seq, p.attempts, rtt.maxRetries);
+                rtt.retransmits++;
+                stats.retransmits.increment();
+                pacer.consume(stats.sent(p.send(link, parts, source, compressor, checksum, rtt, timers)));
+            }
+            if (timedOut) pacer.update(cc, rtt, Protocol.HEADER_SIZE + payloadSize);
+        }
+        return totalBytesAcked;
+    }
+
+    // setSoTimeout works in whole milliseconds and 0 would mean "wait forever"
+    private static int toTimeoutMillis(long nanos) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, (nanos + 999_999) / 1_000_000));
+    }
+
+    /**
+     * AIMD congestion window, counted in packets. Slow start grows it by a packet per ACK (doubling it
+     * every round trip) until ssthresh, after that it grows by one packet per round trip. A loss halves
+     * it, but only once per window of data, since a burst of drops is one congestion signal. A cut for
+     * a fast retransmit that turns out to have been needless (the packet was only late) is undone.
+     * It never grows past --window, which acts as the hard limit on packets in flight.
+     */
+    static class CongestionControl {
+        private static final double INITIAL_CWND = 4;
+        private static final double MIN_CWND = 2;
+        private final int maxWindow;
+        private double cwnd;
+        private double ssthresh;
+        private int recoverySeq = 0; // losses of packets below this seq were already answered with a cut
+        private long lossEvents = 0;
+        private double undoCwnd = 0; // the window before the last cut, 0 once it can't be undone
+        private double undoSsthresh;
+
+        CongestionControl(int maxWindow) {
+            this.maxWindow = maxWindow;
+            this.cwnd = Math.min(INITIAL_CWND, maxWindow);
+            this.ssthresh = maxWindow;
+        }
+
+        int window() {
+            return Math.max(1, (int) cwnd);
+        }
+
+        boolean inSlowStart() {
+            return cwnd < ssthresh;
+        }
+
+        void onAck() {
+            cwnd = Math.min(inSlowStart() ? cwnd + 1 : cwnd + 1 / cwnd, maxWindow);
+        }
+
+        void onLoss(int seq, int nextSeq) {
+            if (seq < recoverySeq) return;
+            undoCwnd = cwnd;
+            undoSsthresh = ssthresh;
+            ssthresh = Math.max(cwnd / 2, MIN_CWND);
+            cwnd = Math.min(ssthresh, maxWindow);
+            recoverySeq = nextSeq;
+            lossEvents++;
+        }
+
+        // The last cut was for a packet that turned out to be only late, so it is taken back
+        void undo() {
+            if (undoCwnd <= cwnd) return;
+            cwnd = undoCwnd;
+            ssthresh = undoSsthresh;
+            undoCwnd = 0;
+            lossEvents--;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Congestion stats: cwnd=%.1f ssthresh=%.1f loss events=%d", cwnd, ssthresh, lossEvents);
+        }
+    }
+
+    /**
+     * Deflates chunks at the fastest level. A chunk only goes out deflated when that saves at least an
+     * eighth of it, otherwise it is sent raw. Already compressed or random data almost never deflates,
+     * so after a few such chunks in a row we stop trying for a while (longer each time it happens again),
+     * which keeps the CPU spent on data that won't shrink close to nothing.
+     */
+    static class Compressor {
+        private static final int GIVE_UP_AFTER = 4; // incompressible chunks in a row before we skip some
+        private static final int MAX_SKIP = 1024;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        private int incompressibleRun = 0;
+        private int skip = 0;
+        private int nextSkip = GIVE_UP_AFTER;
+        private long rawBytes = 0;
+        private long deflatedBytes = 0; // what rawBytes went out as, deflated or not
+        private long deflatedChunks = 0;
+        private long skippedChunks = 0;
+
+        // Deflates data into out (flipped, ready to send) and returns true, or returns false to send it raw
+        boolean compress(ByteBuffer data, ByteBuffer out) {
+            int length = data.remaining();
+            rawBytes += length;
+            if (skip > 0) {
+                skip--;
+                skippedChunks++;
+                deflatedBytes += length;
+                return false;
+            }
+
+            deflater.reset();
+            deflater.setInput(data);
+            deflater.finish();
+            out.clear().limit(length - length / 8);
+            deflater.deflate(out);
+            if (!deflater.finished()) {
+                // Didn't fit in the space that would have made it worthwhile
+                deflatedBytes += length;
+                if (++incompressibleRun >= GIVE_UP_AFTER) {
+                    skip = nextSkip;
+                    nextSkip = Math.min(2 * nextSkip, MAX_SKIP);
+                    incompressibleRun = 0;
+                }
+                return false;
+            }
+            incompressibleRun = 0;
+            nextSkip = GIVE_UP_AFTER;
+            deflatedChunks++;
+            deflatedBytes += out.position();
+            out.flip();
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Compression stats: %d bytes sent as %d (%.1f%%) deflated chunks=%d skipped chunks=%d",
+                    rawBytes, deflatedBytes, rawBytes == 0 ? 100.0 : 100.0 * deflatedBytes / rawBytes, deflatedChunks, skippedChunks);
+        }
+    }
+
+    /**
+     * Token bucket that spreads packets out over the round trip instead of sending a whole window back
+     * to back. The rate follows the congestion window (cwnd packets per SRTT, with some headroom so it
+     * never holds the window back), and --max-rate puts a fixed ceiling on top of that.
+     */
+    static class Pacer {
+        private static final double SLOW_START_GAIN = 2.0; // the window doubles every RTT, so the rate has to keep up
+        private static final double GAIN = 1.25;
+        private static final int BURST_PACKETS = 4;
+        private static final long TIMER_SLACK_NANOS = 2_000_000; // socket timeouts are in whole ms, keep enough tokens to cover one
+        private final double maxRate; // bytes per second, 0 means no cap
+        private double rate = Double.POSITIVE_INFINITY;
+        private double burst = Double.POSITIVE_INFINITY;
+        private double tokens = 0;
+        private long lastRefill = System.nanoTime();
+
+        Pacer(double maxRate) {
+            this.maxRate = maxRate;
+        }
+
+        void update(CongestionControl cc, RttEstimator rtt, int packetBytes) {
+            refill();
+            double newRate = Double.POSITIVE_INFINITY;
+            if (rtt.srttNanos > 0) {
+                double gain = cc.inSlowStart() ? SLOW_START_GAIN : GAIN;
+                newRate = gain * cc.window() * packetBytes / (rtt.srttNanos / 1e9);
+            }
+            if (maxRate > 0) newRate = Math.min(newRate, maxRate);
+            rate = newRate;
+            burst = Math.max(BURST_PACKETS * packetBytes, rate * TIMER_SLACK_NANOS / 1e9);
+            tokens = Math.min(tokens, burst);
+        }
+
+        // How long until a packet of this size may be sent, 0 if right now
+        long delayNanos(int bytes) {
+            if (Double.isInfinite(rate)) return 0;
+            refill();
+            return tokens >= bytes ? 0 : (long) Math.ceil((bytes - tokens) / rate * 1e9);
+        }
+
+        // Retransmits are charged too, they may take the bucket below zero
+        void consume(int bytes) {
+            if (!Double.isInfinite(rate)) tokens -= bytes;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (!Double.isInfinite(rate)) tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
         }
     }
 
     /**
-     * Sends a packet and waits for an ACK (1-byte response) from the server.
-     * Retries up to MAX_RETRIES times if no ACK is received.
+     * Finds the biggest payload that gets to the server without being fragmented. Java can't set the
+     * don't-fragment bit, so the MTU of the interface we route through caps the search, and then we
+     * binary search below that cap with padded PROBE packets that the server echoes the size of.
      */
-    private static void sendWithAck(DatagramSocket socket, InetAddress addr, int port, byte[] data, String stage) throws IOException {
-        DatagramPacket packet = new DatagramPacket(data, data.length, addr, port);
-        byte[] ackBuf = new byte[1];
+    private static int probePayloadSize(DatagramSocket socket, InetAddress addr, int port) throws IOException {
+        int low = BUFFER_SIZE; // the old fixed size, we assume it always gets through
+        int high = Math.min(Protocol.MAX_PAYLOAD, interfacePayloadLimit(addr, port));
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (probe(socket, addr, port, mid)) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    // Connecting a throwaway socket sends nothing, it just makes the OS pick the outgoing interface
+    private static int interfacePayloadLimit(InetAddress addr, int port) {
+        try (DatagramSocket routeCheck = new DatagramSocket()) {
+            routeCheck.connect(addr, port);
+            NetworkInterface nic = NetworkInterface.getByInetAddress(routeCheck.getLocalAddress());
+            if (nic == null || nic.getMTU() <= 0) return Protocol.MAX_PAYLOAD;
+            int ipAndUdpHeaders = addr instanceof Inet6Address ? 48 : 28;
+            return nic.getMTU() - ipAndUdpHeaders - Protocol.MAX_HEADER_SIZE;
+        } catch (IOException e) {
+            return BUFFER_SIZE;
+        }
+    }
+
+    // Sends a probe padded to the size of a data packet with payloadSize bytes of data and every header field, two tries before we call it too big
+    private static boolean probe(DatagramSocket socket, InetAddress addr, int port, int payloadSize) throws IOException {
+        byte[] data = new byte[Protocol.MAX_HEADER_SIZE + payloadSize];
+        Protocol.putHeader(ByteBuffer.wrap(data), Protocol.OP_PROBE, 0, Protocol.CONTROL_SEQ, 0, (byte) 0);
+        byte[] ackBuf = new byte[Protocol.MAX_ACK_SIZE];
         DatagramPacket ackPacket = new DatagramPacket(ackBuf, ackBuf.length);
 
-        for (int attempt = 1; attempt <= MAX_RETRIES; attempt++) {
-            socket.send(packet);
+        for (int attempt = 0; attempt < 2; attempt++) {
             try {
-                socket.receive(ackPacket);
-                if (ackBuf[0] == 1) {
-                    return; // ACK received, success
+                socket.send(new DatagramPacket(data, data.length, addr, port));
+            } catch (IOException e) {
+                return false; // EMSGSIZE, the OS refused it outright
+            }
+            long deadline = System.currentTimeMillis() + PROBE_TIMEOUT_MS;
+            try {
+                long remaining;
+                while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+                    socket.setSoTimeout((int) remaining);
+                    socket.receive(ackPacket);
+                    // The server echoes the size it got
+                    if (isAck(ackPacket) && answered(ackBuf) == Protocol.OP_PROBE && ackSeq(ackBuf) == data.length) return true;
                 }
             } catch (SocketTimeoutException e) {
-                System.err.printf("[ATTEMPT FAILED....RETRYING] No ACK for %s (attempt %d/%d)...%n", stage, attempt, MAX_RETRIES);
+                // try once more
             }
         }
+        return false;
+    }
 
-        throw new IOException("[SEND FAILED] No ACK received after " + MAX_RETRIES + " attempts for stage: " + stage);
+    private static boolean isAck(DatagramPacket packet) {
+        return isReply(packet, Protocol.OP_ACK);
+    }
+
+    private static boolean isNack(DatagramPacket packet) {
+        return isReply(packet, Protocol.OP_NACK);
+    }
+
+    private static boolean isRecovered(DatagramPacket packet) {
+        return isReply(packet, Protocol.OP_RECOVERED);
+    }
+
+    // Checked byte by byte, this runs for every ACK
+    private static boolean isReply(DatagramPacket packet, byte opcode) {
+        byte[] data = packet.getData();
+        return packet.getLength() >= Protocol.HEADER_SIZE && data[0] == (byte) (Protocol.MAGIC >> 8) && data[1] == (byte) Protocol.MAGIC
+                && data[Protocol.VERSION_AT] == Protocol.VERSION && data[Protocol.OPCODE_AT] == opcode;
+    }
+
+    // The opcode of the packet a reply answers
+    private static byte answered(byte[] ackBuf) {
+        return ackBuf[Protocol.FLAGS_AT];
+    }
+
+    private static int ackSeq(byte[] ackBuf) {
+        return ByteBuffer.wrap(ackBuf).getInt(Protocol.SEQ_AT);
+    }
+
+    // Reads the start/end pairs of a data ACK's SACK ranges into sack, returns how many there are
+    private static int readSack(byte[] ackBuf, int length, int[] sack) {
+        if (length < Protocol.HEADER_SIZE + 4) return 0;
+        ByteBuffer ack = ByteBuffer.wrap(ackBuf, 0, length);
+        int ranges = Math.min(ack.getInt(Protocol.HEADER_SIZE), Math.min(sack.length, (length - Protocol.HEADER_SIZE - 4) / 4) / 2);
+        for (int i = 0; i < 2 * ranges; i++) sack[i] = ack.getInt(Protocol.HEADER_SIZE + 4 + 4 * i);
+        return Math.max(ranges, 0);
+    }
+
+    private static boolean inRanges(int[] sack, int ranges, int seq) {
+        for (int i = 0; i < 2 * ranges; i += 2) {
+            if (seq - sack[i] >= 0 && seq - sack[i + 1] < 0) return true;
+        }
+        return false;
+    }
+
+    // Moves offset past the received range it falls in, if any. Ranges are sorted and chunk aligned
+    private static long skipReceived(long[] received, long offset) {
+        for (int i = 0; i < received.length && offset >= received[i]; i += 2) {
+            if (offset < received[i + 1]) offset = received[i + 1];
+        }
+        return offset;
+    }
+
+    private static long rangeBytes(long[] ranges) {
+        long total = 0;
+        for (int i = 0; i < ranges.length; i += 2) total += ranges[i + 1] - ranges[i];
+        return total;
+    }
+
+    // A count followed by that many start/end pairs. Older servers send nothing here
+    private static long[] readRanges(ByteBuffer reply) {
+        if (reply.remaining() < 4) return new long[0];
+        int count = Math.min(reply.getInt(), reply.remaining() / 16);
+        long[] ranges = new long[2 * count];
+        for (int i = 0; i < ranges.length; i++) ranges[i] = reply.getLong();
+        return ranges;
+    }
+
+    /**
+     * Sends the SHA-256 of every block of the file, up to MAX_MANIFEST_BLOCKS per packet, and returns
+     * the byte ranges the server said it now has. Blocks are whole packets, sized the same way as on
+     * the server, so the ranges stay chunk aligned.
+     */
+    private static long[] sendManifest(Link link, FileSource source, int payloadSize, RttEstimator rtt) throws IOException {
+        long blockSize = Math.max(1, Protocol.DEDUP_BLOCK / payloadSize) * (long) payloadSize;
+        int blocks = (int) ((source.length() + blockSize - 1) / blockSize);
+        MessageDigest digest = Util.newSha256();
+        List<Long> known = new ArrayList<>();
+        for (int first = 0; first < blocks; first += Protocol.MAX_MANIFEST_BLOCKS) {
+            int count = Math.min(Protocol.MAX_MANIFEST_BLOCKS, blocks - first);
+            ByteBuffer manifest = ByteBuffer.allocate(8 + count * 32);
+            manifest.putInt(first).putInt(count);
+            for (int i = first; i < first + count; i++) {
+                long start = i * blockSize;
+                manifest.put(source.sha256(start, Math.min(source.length(), start + blockSize), digest));
+            }
+            ByteBuffer reply = sendWithAck(link, Protocol.OP_MANIFEST, manifest.array(), "manifest", rtt);
+            // The first block index comes back with the mask, anything else is a stale reply and tells us nothing
+            if (reply.remaining() < 12 || reply.getInt() != first) continue;
+            long mask = reply.getLong();
+            for (int i = 0; i < count; i++) {
+                if ((mask & (1L << i)) == 0) continue;
+                long start = (first + i) * blockSize;
+                long end = Math.min(source.length(), start + blockSize);
+                // Neighbouring blocks become one range
+                if (!known.isEmpty() && known.get(known.size() - 1) == start) known.set(known.size() - 1, end);
+                else { known.add(start); known.add(end); }
+            }
+        }
+        return known.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    // Union of two sorted lists of start/end pairs, sorted again with overlapping and touching ranges joined
+    private static long[] mergeRanges(long[] a, long[] b) {
+        long[][] all = new long[(a.length + b.length) / 2][];
+        for (int i = 0; i < a.length; i += 2) all[i / 2] = new long[] {a[i], a[i + 1]};
+        for (int i = 0; i < b.length; i += 2) all[(a.length + i) / 2] = new long[] {b[i], b[i + 1]};
+        Arrays.sort(all, Comparator.comparingLong(range -> range[0]));
+        long[] merged = new long[2 * all.length];
+        int n = 0;
+        for (long[] range : all) {
+            if (n > 0 && range[0] <= merged[n - 1]) {
+                merged[n - 1] = Math.max(merged[n - 1], range[1]);
+            } else {
+                merged[n++] = range[0];
+                merged[n++] = range[1];
+            }
+        }
+        return Arrays.copyOf(merged, n);
+    }
+
+    /**
+     * Identifies this version of the file: the same name, size and modification time give the same id,
+     * so a rerun after a failed upload resumes it instead of starting over.
+     */
+    private static String transferId(File file) {
+        String identity = file.getName() + "\n" + file.length() + "\n" + file.lastModified();
+        return UUID.nameUUIDFromBytes(identity.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * One upload's way to the server: a channel of its own, connected so packets go out as gathering
+     * writes and replies come in through the socket adaptor, or its share of a batch's channel.
+     * An upload in a batch has a transfer number, which goes in the header of every packet it sends.
+     * Its packets are copied into one buffer to go out, since the batch's channel isn't connected,
+     * and its replies come from the batch's receive thread.
+     */
+    static class Link implements Closeable {
+        final DatagramChannel channel;
+        final int transfer; // 0 on a channel of our own
+        private final Batch batch;
+        private final BlockingQueue<byte[]> replies;
+        private volatile InetSocketAddress target;
+        private ByteBuffer sendBuffer;
+        private ByteBuffer controlBuffer;
+
+        Link(DatagramChannel channel) {
+            this(channel, 0, null, null);
+        }
+
+        Link(DatagramChannel channel, int transfer, Batch batch, BlockingQueue<byte[]> replies) {
+            this.channel = channel;
+            this.transfer = transfer;
+            this.batch = batch;
+            this.replies = replies;
+        }
+
+        // Sends a packet in parts (the header first), returns the bytes sent
+        long write(ByteBuffer[] parts) throws IOException {
+            if (transfer == 0) return channel.write(parts);
+            if (sendBuffer == null) sendBuffer = ByteBuffer.allocateDirect(65536);
+            sendBuffer.clear();
+            for (ByteBuffer part : parts) sendBuffer.put(part);
+            return channel.send(sendBuffer.flip(), target);
+        }
+
+        // Control packets, the header and the body built in one buffer that is kept for the next one
+        void send(byte opcode, byte[] body) throws IOException {
+            if (controlBuffer == null || controlBuffer.capacity() < Protocol.HEADER_SIZE + body.length) {
+                controlBuffer = ByteBuffer.allocate(Protocol.HEADER_SIZE + body.length);
+            }
+            controlBuffer.clear();
+            Protocol.putHeader(controlBuffer, opcode, transfer, Protocol.CONTROL_SEQ, 0, (byte) 0).put(body).flip();
+            if (transfer == 0) {
+                channel.write(controlBuffer);
+            } else {
+                channel.send(controlBuffer, target);
+            }
+        }
+
+        // Waits up to timeoutNanos for the next reply, and throws SocketTimeoutException when none comes
+        void receive(DatagramPacket packet, long timeoutNanos) throws IOException {
+            if (replies == null) {
+                DatagramSocket socket = channel.socket();
+                socket.setSoTimeout(toTimeoutMillis(timeoutNanos));
+                socket.receive(packet);
+                return;
+            }
+            byte[] reply;
+            try {
+                reply = replies.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a reply");
+            }
+            if (reply == null) throw new SocketTimeoutException("No reply in time");
+            int length = Math.min(reply.length, packet.getData().length);
+            System.arraycopy(reply, 0, packet.getData(), 0, length);
+            packet.setLength(length);
+        }
+
+        // Sends the rest of the upload to this address, which a port range server picks in its handshake ACK
+        void follow(InetSocketAddress to) throws IOException {
+            if (transfer != 0) {
+                target = to;
+            } else if (!to.equals(channel.getRemoteAddress())) {
+                channel.disconnect();
+                channel.connect(to);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (batch != null) batch.uploads.remove(transfer);
+        }
+    }
+
+    /**
+     * A socket shared by the uploads of a batch. One thread receives every reply and queues it for the
+     * upload whose transfer number is in its header. The channel stays unconnected, the server may want
+     * the uploads after their handshakes on another of its ports.
+     */
+    static class Batch implements Closeable {
+        final DatagramChannel channel;
+        private final Map<Integer, BlockingQueue<byte[]>> uploads = new ConcurrentHashMap<>();
+        private final AtomicInteger nextTransfer = new AtomicInteger(1);
+        private InetSocketAddress server;
+        private Thread receiver;
+
+        Batch() throws IOException {
+            channel = DatagramChannel.open();
+            channel.bind(null);
+        }
+
+        void start(InetSocketAddress server) {
+            this.server = server;
+            receiver = new Thread(this::receive, "batch-receiver");
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+
+        Link open() {
+            int transfer = nextTransfer.getAndIncrement();
+            BlockingQueue<byte[]> replies = new LinkedBlockingQueue<>();
+            uploads.put(transfer, replies);
+            Link link = new Link(channel, transfer, this, replies);
+            link.target = server;
+            return link;
+        }
+
+        private void receive() {
+            ByteBuffer buffer = ByteBuffer.allocate(Protocol.MAX_ACK_SIZE);
+            try {
+                while (true) {
+                    buffer.clear();
+                    channel.receive(buffer);
+                    buffer.flip();
+                    if (buffer.remaining() < Protocol.HEADER_SIZE) continue;
+                    // Replies for uploads that already finished are dropped, just like late ACKs on a socket of their own
+                    BlockingQueue<byte[]> replies = uploads.get(buffer.getInt(Protocol.TRANSFER_AT));
+                    if (replies != null) replies.offer(Arrays.copyOf(buffer.array(), buffer.limit()));
+                }
+            } catch (IOException e) {
+                // closed, the batch is over
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            if (receiver != null) {
+                try {
+                    receiver.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forward error correction for one stream. The data of every group of packets is XORed together
+     * as they are first sent, and the group is followed by one PARITY packet: the group's first sequence
+     * number and offset in the header, then its packet count and the XOR, always a whole payload long
+     * (shorter chunks count as zero padded). When exactly one packet of a group is lost, the server rebuilds it from the
+     * others and the parity and ACKs it as RECOVERED, so it costs no timeout and no resend.
+     * A group is consecutive sequence numbers over contiguous chunks, which is what lets the parity
+     * packet describe it with just a count. Retransmits never join a group.
+     * With group 0 the size follows the loss rate seen so far (packets that timed out, or that the
+     * server had to rebuild): one parity packet per about 1/(2 × loss) packets, so a group mostly has
+     * no more than one loss in it, between MIN_GROUP and MAX_PARITY_GROUP.
+     */
+    private static class Fec {
+        static final int MIN_GROUP = 4;
+
+        private final int payloadSize;
+        private final int fixedGroup;
+        private final ByteBuffer[] parts; // header, descriptor and parity, sent as one write
+        private int group;
+        private int count = 0;
+        private int firstSeq;
+        private long firstOffset;
+        private long packets = 0; // first sends so far
+        private long losses = 0;
+
+        Fec(int payloadSize, int fixedGroup, int headerSize) {
+            this.payloadSize = payloadSize;
+            this.fixedGroup = fixedGroup;
+            this.group = fixedGroup > 0 ? fixedGroup : Protocol.MAX_PARITY_GROUP;
+            this.parts = new ByteBuffer[3];
+            parts[0] = ByteBuffer.allocateDirect(headerSize);
+            parts[1] = ByteBuffer.allocateDirect(Protocol.PARITY_DESCRIPTOR);
+            parts[2] = ByteBuffer.allocateDirect(payloadSize);
+        }
+
+        // Whether a first send with this sequence number and offset can join the current group
+        boolean continues(int seq, long offset) {
+            return count == 0 || seq == firstSeq + count && offset == firstOffset + (long) count * payloadSize;
+        }
+
+        void add(int seq, long offset, ByteBuffer data) {
+            ByteBuffer parity = parts[2];
+            int length = data.remaining();
+            if (count == 0) {
+                firstSeq = seq;
+                firstOffset = offset;
+                parity.clear();
+                parity.put(data);
+                while (parity.hasRemaining()) parity.put((byte) 0);
+            } else {
+                int position = data.position();
+                int i = 0;
+                for (; i + 8 <= length; i += 8) parity.putLong(i, parity.getLong(i) ^ data.getLong(position + i));
+                for (; i < length; i++) parity.put(i, (byte) (parity.get(i) ^ data.get(position + i)));
+            }
+            count++;
+            packets++;
+        }
+
+        boolean isFull() {
+            return count >= group;
+        }
+
+        void onLoss() {
+            losses++;
+        }
+
+        // Sends the parity packet of the current group and starts a new one. A group of one isn't worth
+        // a packet. Returns the bytes sent
+        int sendParity(Link link, CRC32C checksum) throws IOException {
+            int groupCount = count;
+            count = 0;
+            if (fixedGroup == 0 && packets >= group) {
+                double loss = losses / (double) packets;
+                group = loss <= 0 ? Protocol.MAX_PARITY_GROUP : (int) Math.max(MIN_GROUP, Math.min(Protocol.MAX_PARITY_GROUP, Math.round(1 / (2 * loss))));
+            }
+            if (groupCount < 2) return 0;
+
+            ByteBuffer header = parts[0].clear();
+            ByteBuffer descriptor = parts[1].clear();
+            descriptor.putInt(groupCount).flip();
+            parts[2].clear();
+            Protocol.putHeader(header, Protocol.OP_PARITY, link.transfer, firstSeq, firstOffset, Protocol.BLOCK_RAW);
+            if (checksum != null) {
+                checksum.reset();
+                checksum.update(header.flip());
+                checksum.update(descriptor);
+                checksum.update(parts[2]);
+                descriptor.rewind();
+                parts[2].rewind();
+                header.limit(header.capacity()).putInt((int) checksum.getValue());
+            }
+            header.flip();
+            return (int) link.write(parts);
+        }
+
+        int group() {
+            return group;
+        }
+    }
+
+    /**
+     * A slot for a data packet that has been sent but not yet acknowledged by the server.
+     * Slots are reused for later sequence numbers once their packet is ACKed. Each is its own
+     * retransmission timer, armed on every send and cancelled by the ACK.
+     */
+    static class InFlight extends TimingWheel.Timer {
+        private boolean active = false;
+        private int seq;
+        private long offset;
+        private int length; // file bytes carried, without the header
+        private long sentAt; // System.nanoTime() of the latest send
+        private int attempts;
+        private boolean fastResent; // resent because of SACKs rather than its timer
+        private boolean compressed; // sent as the deflated block in `deflated` rather than straight from the file
+        private ByteBuffer deflated; // this slot's own buffer for deflated blocks, reused by every packet it holds
+
+        void reset(int seq, long offset, int length) {
+            this.active = true;
+            this.seq = seq;
+            this.offset = offset;
+            this.length = length;
+            this.attempts = 0;
+            this.fastResent = false;
+        }
+
+        // Writes the header into the reused header buffer and sends it together with the data, which
+        // comes straight out of the file buffer (a gathering write, so the two are never joined in memory).
+        // With a compressor the chunk is deflated on its first send, and the header's flags say whether it was.
+        // With a checksum, the header is followed by the CRC32C of it and the data.
+        // Returns the bytes put on the wire
+        int send(Link link, ByteBuffer[] parts, ChunkSource source, Compressor compressor, CRC32C checksum,
+                 RttEstimator rtt, TimingWheel<InFlight> timers) throws IOException {
+            if (attempts == 0 && compressor != null) {
+                if (deflated == null || deflated.capacity() < length) deflated = ByteBuffer.allocateDirect(length);
+                compressed = compressor.compress(source.slice(offset, length), deflated);
+            }
+            ByteBuffer header = parts[0];
+            header.clear();
+            Protocol.putHeader(header, Protocol.OP_DATA, link.transfer, seq, offset, compressed ? Protocol.BLOCK_DEFLATED : Protocol.BLOCK_RAW);
+            if (checksum != null) {
+                checksum.reset();
+                checksum.update(header.flip());
+                checksum.update(data(source));
+                header.limit(header.capacity()).putInt((int) checksum.getValue());
+            }
+            header.flip();
+            parts[1] = data(source);
+            int sent = (int) link.write(parts);
+            sentAt = System.nanoTime();
+            timers.schedule(this, sentAt + rtt.rtoNanos()); // resend if still unacknowledged by then
+            attempts++;
+            return sent;
+        }
+
+        private ByteBuffer data(ChunkSource source) throws IOException {
+            return compressed ? deflated.rewind() : source.slice(offset, length);
+        }
+    }
+
+    /**
+     * Where the send loop gets each packet's data from: a view of the chunk at this offset, only used
+     * until the next call. The server sends downloads out of its block cache through it.
+     */
+    interface ChunkSource {
+        ByteBuffer slice(long offset, int size) throws IOException;
+    }
+
+    /**
+     * The file being sent, as buffers that packets are sliced out of. Big files are memory-mapped, so
+     * packet data goes from the page cache to the socket without ever being copied into the heap.
+     * Small files are just read into one buffer, since setting up a mapping costs more than it saves.
+     * Files over 2GB are mapped in several segments, each a whole number of packets long so that no
+     * packet straddles two of them.
+     */
+    static class FileSource implements ChunkSource, Closeable {
+        private static final long MMAP_THRESHOLD = 1024 * 1024;
+        private final FileChannel channel;
+        private final long length;
+        private final long segmentSize;
+        private final ByteBuffer[] views; // one reusable view per segment, repositioned for every packet
+        private final boolean mapped;
+
+        FileSource(File file, int payloadSize) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            length = channel.size();
+            mapped = length >= MMAP_THRESHOLD;
+            segmentSize = (Integer.MAX_VALUE / payloadSize) * (long) payloadSize;
+            views = new ByteBuffer[(int) ((length + segmentSize - 1) / segmentSize)];
+            for (int i = 0; i < views.length; i++) {
+                long start = i * segmentSize;
+                long size = Math.min(segmentSize, length - start);
+                views[i] = mapped ? channel.map(FileChannel.MapMode.READ_ONLY, start, size) : readFully(start, (int) size);
+            }
+        }
+
+        private ByteBuffer readFully(long start, int size) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) throw new EOFException("File shrank while reading it");
+            }
+            return buffer.flip();
+        }
+
+        // Points the segment's view at the data for the packet at this offset
+        @Override
+        public ByteBuffer slice(long offset, int size) {
+            ByteBuffer view = views[(int) (offset / segmentSize)];
+            int start = (int) (offset % segmentSize);
+            view.clear();
+            view.position(start).limit(start + size);
+            return view;
+        }
+
+        long length() {
+            return length;
+        }
+
+        boolean isMapped() {
+            return mapped;
+        }
+
+        private FileSource(FileSource original) {
+            channel = original.channel;
+            length = original.length;
+            segmentSize = original.segmentSize;
+            mapped = original.mapped;
+            views = new ByteBuffer[original.views.length];
+            for (int i = 0; i < views.length; i++) views[i] = original.views[i].duplicate();
+        }
+
+        // Hex SHA-256 of the whole file, straight from the mapped (or read) buffers
+        String sha256() {
+            return HexFormat.of().formatHex(sha256(0, length, Util.newSha256()));
+        }
+
+        // SHA-256 of the bytes from start to end, which may cross segments
+        byte[] sha256(long start, long end, MessageDigest digest) {
+            digest.reset();
+            while (start < end) {
+                int size = (int) Math.min(end - start, segmentSize - start % segmentSize);
+                digest.update(slice(start, size));
+                start += size;
+            }
+            return digest.digest();
+        }
+
+        // Another set of views over the same buffers, for another sending thread. Only the original is closed
+        FileSource duplicate() {
+            return new FileSource(this);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * What JMX shows of a running upload, summed over all its streams.
+     */
+    public interface TransferStatsMBean {
+        long getBytesAcked();
+        long getPacketsSent();
+        long getBytesSent();
+        long getRetransmits();
+        long getNacks();
+        long getDuplicateAcks();
+        long getAcks();
+        long getFastRetransmits();
+        long getParityPackets();
+        long getPacketsRecovered();
+        double getBytesPerSecond();
+        double getAckLatencyP50Millis();
+        double getAckLatencyP90Millis();
+        double getAckLatencyP99Millis();
+    }
+
+    /**
+     * Counters for one upload, shared by all its streams. The send loops only bump LongAdders and the
+     * histogram, progress is printed by a timer thread every progress interval instead of once per ACK,
+     * so a slow terminal can't hold up sending. Bytes sent counts what went on the wire (headers,
+     * retransmits, deflated sizes), bytes acked is how much of the file the server has.
+     */
+    static class TransferStats implements TransferStatsMBean {
+        final AtomicLong acked = new AtomicLong();
+        final LongAdder packets = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder retransmits = new LongAdder();
+        final LongAdder nacks = new LongAdder();
+        final LongAdder duplicateAcks = new LongAdder();
+        final LongAdder acks = new LongAdder(); // data ACKs, each may cover several packets
+        final LongAdder fastRetransmits = new LongAdder(); // resent because of the SACKs, before their timer ran out
+        final LongAdder parityPackets = new LongAdder();
+        final LongAdder recovered = new LongAdder(); // lost packets the server rebuilt from parity
+        final Util.Histogram ackLatency = new Util.Histogram(); // packets that were ACKed the first time they were sent
+        private final long fileLength;
+        private final long startedAt = System.nanoTime();
+        private ScheduledExecutorService reporter;
+        private ObjectName mbeanName;
+        private long lastAcked;
+        private long lastReport;
+        private volatile double rate = 0;
+
+        TransferStats(long fileLength) {
+            this.fileLength = fileLength;
+        }
+
+        // Counts one data packet of this many bytes and passes the size on, so it wraps InFlight.send
+        int sent(int length) {
+            packets.increment();
+            bytes.add(length);
+            return length;
+        }
+
+        // The same for parity packets, where 0 means none was sent
+        int parity(int length) {
+            if (length > 0) parityPackets.increment();
+            bytes.add(length);
+            return length;
+        }
+
+        void register(String name) {
+            try {
+                mbeanName = new ObjectName(name);
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, TransferStatsMBean.class), mbeanName);
+            } catch (JMException e) {
+                System.err.println("Could not register MBean " + name + ": " + e.getMessage());
+                mbeanName = null;
+            }
+        }
+
+        void startReporting(long intervalMs) {
+            lastAcked = acked.get();
+            lastReport = System.nanoTime();
+            reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "progress");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(this::report, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+
+        // Once sending is over, failed or not. The counters stay readable, just not through JMX
+        void close() {
+            if (reporter != null) reporter.shutdownNow();
+            try {
+                if (mbeanName != null) ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                // already gone
+            }
+            mbeanName = null;
+        }
+
+        private void report() {
+            long now = System.nanoTime();
+            long sent = acked.get();
+            rate = (sent - lastAcked) / ((now - lastReport) / 1e9);
+            lastAcked = sent;
+            lastReport = now;
+            System.out.printf("Sent %d bytes (%.2f%%) at %.2f MB/s%n", sent, fileLength == 0 ? 100.0 : sent * 100.0 / fileLength,
+                    rate / (1024 * 1024));
+        }
+
+        @Override
+        public long getBytesAcked() {
+            return acked.get();
+        }
+
+        @Override
+        public long getPacketsSent() {
+            return packets.sum();
+        }
+
+        @Override
+        public long getBytesSent() {
+            return bytes.sum();
+        }
+
+        @Override
+        public long getRetransmits() {
+            return retransmits.sum();
+        }
+
+        @Override
+        public long getNacks() {
+            return nacks.sum();
+        }
+
+        @Override
+        public long getDuplicateAcks() {
+            return duplicateAcks.sum();
+        }
+
+        @Override
+        public long getAcks() {
+            return acks.sum();
+        }
+
+        @Override
+        public long getFastRetransmits() {
+            return fastRetransmits.sum();
+        }
+
+        @Override
+        public long getParityPackets() {
+            return parityPackets.sum();
+        }
+
+        @Override
+        public long getPacketsRecovered() {
+            return recovered.sum();
+        }
+
+        @Override
+        public double getBytesPerSecond() {
+            return rate;
+        }
+
+        @Override
+        public double getAckLatencyP50Millis() {
+            return ackLatency.percentile(0.50) / 1e6;
+        }
+
+        @Override
+        public double getAckLatencyP90Millis() {
+            return ackLatency.percentile(0.90) / 1e6;
+        }
+
+        @Override
+        public double getAckLatencyP99Millis() {
+            return ackLatency.percentile(0.99) / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = (System.nanoTime() - startedAt) / 1e9;
+            return String.format("Transfer stats: %.0f pkt/s, %.2f MB/s on the wire, %d packets, %d acks, %d retransmits"
+                            + " (%d fast), %d nacks, %d duplicate acks, %d parity packets, %d rebuilt from parity,"
+                            + " ack latency p50=%.3fms p90=%.3fms p99=%.3fms",
+                    packets.sum() / seconds, bytes.sum() / seconds / (1024 * 1024), packets.sum(), acks.sum(), retransmits.sum(),
+                    fastRetransmits.sum(), nacks.sum(), duplicateAcks.sum(), parityPackets.sum(), recovered.sum(), getAckLatencyP50Millis(), getAckLatencyP90Millis(), getAckLatencyP99Millis());
+        }
+    }
+
+    /**
+     * Jacobson/Karels round trip estimator (as in RFC 6298). Keeps a smoothed RTT and its variance
+     * from ACK timings and turns them into the retransmission timeout (RTO). The RTO doubles on every
+     * timeout and only comes back down once a fresh sample arrives.
+     * The current values are printed at the end of a transfer so the bounds can be tuned.
+     */
+    static class RttEstimator {
+        private static final double ALPHA = 1.0 / 8; // gain for the smoothed RTT
+        private static final double BETA = 1.0 / 4; // gain for the RTT variance
+        private final long minRtoNanos;
+        private final long maxRtoNanos;
+        private final int maxRetries;
+        private double srttNanos = -1; // -1 until the first sample
+        private double rttVarNanos = 0;
+        private long minRttNanos = Long.MAX_VALUE; // the path's round trip with no queueing or delayed ACK in it
+        private long rtoNanos = TIMEOUT_MS * 1_000_000L;
+        private long samples = 0;
+        private long retransmits = 0;
+
+        RttEstimator(int minRtoMs, int maxRtoMs, int maxRetries) {
+            this.minRtoNanos = minRtoMs * 1_000_000L;
+            this.maxRtoNanos = Math.max(minRtoMs, maxRtoMs) * 1_000_000L;
+            this.maxRetries = maxRetries;
+            this.rtoNanos = Math.max(minRtoNanos, Math.min(rtoNanos, maxRtoNanos));
+        }
+
+        void sample(long rttNanos) {
+            if (srttNanos < 0) {
+                srttNanos = rttNanos;
+                rttVarNanos = rttNanos / 2.0;
+            } else {
+                rttVarNanos = (1 - BETA) * rttVarNanos + BETA * Math.abs(srttNanos - rttNanos);
+                srttNanos = (1 - ALPHA) * srttNanos + ALPHA * rttNanos;
+            }
+            samples++;
+            minRttNanos = Math.min(minRttNanos, rttNanos);
+            rtoNanos = Math.max(minRtoNanos, Math.min((long) (srttNanos + 4 * rttVarNanos), maxRtoNanos));
+        }
+
+        void backoff() {
+            rtoNanos = Math.min(rtoNanos * 2, maxRtoNanos);
+        }
+
+        long rtoNanos() {
+            return rtoNanos;
+        }
+
+        double srttMillis() {
+            return srttNanos < 0 ? Double.NaN : srttNanos / 1e6;
+        }
+
+        double rttVarMillis() {
+            return rttVarNanos / 1e6;
+        }
+
+        long retransmits() {
+            return retransmits;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("RTT stats: srtt=%.3fms rttvar=%.3fms rto=%.1fms samples=%d retransmits=%d",
+                    srttMillis(), rttVarMillis(), rtoNanos / 1e6, samples, retransmits);
+        }
+    }
+
+    // Bytes per second, with an optional K, M or G suffix (powers of 1024), e.g. --max-rate=10M
+    private static double parseRate(String value) {
+        long rate;
+        try {
+            rate = Util.parseBytes(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid max-rate: " + value);
+        }
+        if (rate <= 0) {
+            throw new IllegalArgumentException("max-rate must be a positive number");
+        }
+        return rate;
+    }
+
+    private static int parsePositive(String value, String name) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n <= 0) {
+                throw new IllegalArgumentException(name + " must be a positive number");
+            }
+            return n;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
     }
 
     // We only want to allow the unallocated ports within the following range: [1024 - 65535] inclusive
@@ -1,7 +1,26 @@
 import java.net.*;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
  * Assignment2svr — This is a Concurrent UDP file receiver server
@@ -10,113 +29,320 @@ import java.util.concurrent.*;
  * same file names (we handle uniqueness on this server end).
  *
  * Each client is identified by its IP:port and runs in its own thread.
+ * Packets are received by one or more receive shards, each a non-blocking
+ * DatagramChannel on the port (SO_REUSEPORT) or on its own port of a range.
+ * Each shard receives into its own pool of direct buffers, which are handed
+ * to the session and returned once written to disk.
  *
  * Protocol summary:
- *  - Client sends "META:FILENAME:<filename>" to start
+ *  - Every datagram, both ways, starts with the fixed header laid out in Protocol;
+ *    anything with the wrong magic or version is dropped, and dispatch is a switch on the opcode
+ *  - Replies are ACK, NACK (arrived, but failed verification) or RECOVERED, with the sequence number
+ *    they answer and the opcode of the packet they answer in the flags byte
+ *  - Client may send padded PROBE packets first to find the largest packet that gets through;
+ *    the server ACKs each with the size it received as the sequence number
+ *  - Client sends START with "<filename>" as its body to start, optionally followed by
+ *    "\npayload=<bytes>" lines asking for bigger data packets, and "\nid=<transfer id>"
+ *    plus "\nsize=<bytes>" lines so an interrupted upload can be resumed, "\nintegrity=1"
+ *    to have every packet and the whole file verified, "\ncompress=deflate" to send
+ *    compressed blocks, "\ndedup=1" to skip blocks the server already has, and "\nfec=1" to
+ *    send parity packets the server can rebuild a lost packet from
  *          -- This is so the filename is preserved from the client
- *  - Server responds with 1-byte ACK
+ *          -- A filename that isn't a plain name in the upload directory (no path, not hidden) is NACKed
+ *  - Server responds with an ACK (sequence number -1, then the payload size it agreed to
+ *    + the port the client should send the rest of the upload to + the byte ranges it already
+ *    has of this transfer id, as a count and start/end pairs + the features it agreed to, as flags)
  *          -- Used to ACK so we know the file reached appropriately
- *  - Client sends data packets
- *          -- Data to send in packets of 1KB or 1024 Bytes each
- *  - Client sends "META:END" when finished
+ *          -- A resumed upload goes into the same output file, and the client skips those ranges
+ *          -- Unless that transfer id is still being sent to by a client on another host: then this
+ *             one is a separate upload with a name of its own, and the other isn't cut off
+ *  - With dedup on, the client then sends MANIFEST packets: the index of the first block, a count,
+ *    and that many SHA-256 hashes of consecutive blocks of the file (a block is the chunks in
+ *    about 1MB). The server copies every block it can find in its chunk index into the output
+ *    file and ACKs with the first block and a bitmask of the ones it now has
+ *          -- The client skips those, just like ranges the server had from a resumed upload
+ *  - A multi-stream client then repeats the handshake from each of its other sockets with a
+ *    "\nstream=<n>" line, and the server adds that socket as another stream of the same upload.
+ *    The handshake has an "\nattempt=<random id>" line for this, another client uploading the same
+ *    file at the same time has the same transfer id but not the same attempt
+ *  - A batch client uploads many files at once from one socket, each with a transfer number of its
+ *    own in every header. Sessions are keyed by IP:port plus that number
+ *  - Client sends DATA packets, several in flight at once (sliding window)
+ *          -- The header has its sequence number and the file offset of its data, and up to the
+ *             agreed payload size of data (1KB by default) follows
+ *          -- Server ACKs them in bunches: each ACK has the stream's cumulative point as its sequence
+ *             number (every packet below it arrived), then a count and start/end pairs of the runs
+ *             above it that arrived too. In order, every --ack-every packets or --ack-delay-ms after
+ *             the first unACKed one; anything out of order is ACKed straight away, so the client
+ *             only resends the ones that were actually lost, and sees a gap as soon as we do
+ *          -- Data is written at its offset, so arrival order does not matter
+ *          -- With compression on, flag BLOCK_DEFLATED says the data is a raw deflate block of the
+ *             chunk (still payload size bytes once inflated)
+ *          -- With integrity on, a CRC32C of the header and the data follows the header.
+ *             A packet that fails it gets a NACK, and the client resends it
+ *          -- With FEC on, each group of consecutive packets is followed by a PARITY packet: the
+ *             group's first sequence number and offset in the header, then its packet count and the
+ *             XOR of all its chunks. When exactly one of them never arrives, the server rebuilds it
+ *             and answers it with RECOVERED instead of waiting for a resend
+ *  - Client sends END (from the main socket) when every stream is finished, with integrity
+ *    on with the hex SHA-256 of the file as its body
+ *          -- The server hashes the file as it writes it, and NACKs the END if the digests differ
  *          -- This completes our file send, so server knows it
  *             can stop listening for packets from this client thread
  *  - Server finalizes and closes file, acknowledging each step
+ *          -- Until then the upload is written to a hidden ".<name>.part" file, made full size up front
+ *             when the handshake gave the size. Only a complete (and verified) file is renamed to its name
+ *  - A client sends GET with "<filename>" as its body (plus "\npayload=" and "\nintegrity=1" lines, as
+ *    in START) to download a file the server has. The server NACKs it when there is no such file, and
+ *    otherwise ACKs it with the payload size, the file's size, the port it sends from and the agreed
+ *    features. The client ACKs that ACK (flags GET) from its socket to the server's port, and the
+ *    server waits for it before it sends the file from that port with the client's own sliding window
+ *    sender: DATA packets that the client ACKs (cumulative point and SACK ranges) and NACKs, then an
+ *    END it ACKs.
+ *    The data comes out of a cache of recently read blocks shared by every download (--cache-size)
+ *
+ * While an upload with a transfer id is running, the server regularly saves a checkpoint (the id,
+ * expected size, output file and which chunks are safely on disk) to the checkpoint directory.
+ * Checkpoints are loaded again at startup, so uploads can even be resumed across server restarts.
+ * Next to the checkpoints, a chunk index remembers where every block of each deduplicated upload
+ * can be found, so the same data uploaded again (or another version of it) is copied locally.
+ * An upload that hears nothing from its client for --idle-ms is given up on: with a transfer id it
+ * is checkpointed for a later resume, without one its partial file is deleted. A rerun from the same
+ * host takes over a transfer of the same file that is still running straight away. From another host
+ * it only may once that transfer has heard nothing for --takeover-ms, until then it counts as another
+ * client, and gets a file of its own.
+ *
+ * Counters for the receive loops and every running session are published as JMX MBeans (under
+ * "Assignment2svr:"), and a compact summary of them is printed every --stats-ms while data is arriving.
  */
 public class Assignment2svr {
 
-    /**
-     * Set up custom prefixes to make filename extraction and data extraction convenient between client and server
-     */
-    private static final int BUFFER_SIZE = 1024;
-    private static final String HEADER_PREFIX = "META:";
-    private static final String HEADER_FILENAME = "META:FILENAME:";
-    private static final String HEADER_END = "META:END";
 
-    // Track all active client upload sessions
-    private static final ConcurrentHashMap<ClientKey, ClientSession> sessions = new ConcurrentHashMap<>();
+    private static final int BUFFER_SIZE = 1024; // payload size for clients that don't ask for one
+    private static final int SOCKET_RECEIVE_BUFFER = 8 * 1024 * 1024; // room for whole windows of big packets
+    private static final long MEMORY_BUDGET = 16L * 1024 * 1024; // default direct memory for receive buffers, split across the shards
+    private static final int MIN_SHARD_BUFFERS = 32;
+    private static final int SESSION_QUEUE = 128; // default for how many packets a session may have waiting for its writer
+    private static final Pattern TRANSFER_ID = Pattern.compile("[0-9A-Za-z-]{1,64}"); // ids name checkpoint files
+    private static final int MAX_FAILED_KEYS = 64; // clients whose last upload failed verification, remembered for a repeated END
+    private static final long STATS_MS = 10_000; // default interval of the stats summary, 0 turns it off
+    private static final int ACK_EVERY = 4; // default in-order data packets per ACK
+    private static final long ACK_DELAY_MS = 2; // default longest an in-order data packet waits for its ACK
+    private static final long IDLE_MS = 60_000; // default time without a packet after which an upload is given up on
+    private static final long TAKEOVER_MS = 5_000; // default quiet time before another host may take over a running transfer, past the client's max RTO
+    private static final long TIMER_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1); // resolution of the shards' timing wheels
+    private static final int TIMER_SLOTS = 1024; // one second of 1ms ticks per turn of the wheel
+    private static final long CACHE_SIZE = 64L * 1024 * 1024; // default memory for cached blocks of downloaded files
+    private static final int CACHE_BLOCK = 1024 * 1024; // cached blocks are the whole packets that fit in this
+
+    // Every thread that sends ACKs reuses its own buffer for them
+    private static final ThreadLocal<ByteBuffer> ackBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Protocol.MAX_ACK_SIZE));
 
     public static void main(String[] args) throws Exception {
-        if (args.length != 1) {
-            System.err.println("Usage: java Assignment2svr <port>");
+        if (args.length < 1) {
+            System.err.println("Usage: java Assignment2svr <port> [--shards=N] [--port-range]"
+                    + " [--executor=virtual|cached|fixed:N] [--session-queue=N] [--memory-budget=BYTES[K|M|G]]"
+                    + " [--fsync=none|end|periodic] [--fsync-bytes=BYTES[K|M|G]] [--fsync-ms=MS]"
+                    + " [--checkpoint-dir=DIR] [--checkpoint-ms=MS] [--stats-ms=MS] [--ack-every=N] [--ack-delay-ms=MS]"
+                    + " [--idle-ms=MS] [--takeover-ms=MS] [--cache-size=BYTES[K|M|G]]");
             System.exit(1);
         }
 
         int port = Integer.parseInt(args[0]);
-        if (!isPortSafe(port) || !isPortAvailable(port)) {
-            System.err.println("Unsafe or unavailable port: " + port);
+        Map<String, String> options = Util.parseOptions(args, 1);
+        int shardCount = Integer.parseInt(options.getOrDefault("shards", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int sessionQueue = Integer.parseInt(options.getOrDefault("session-queue", String.valueOf(SESSION_QUEUE)));
+        int ackEvery = Integer.parseInt(options.getOrDefault("ack-every", String.valueOf(ACK_EVERY)));
+        long ackDelayMs = Long.parseLong(options.getOrDefault("ack-delay-ms", String.valueOf(ACK_DELAY_MS)));
+        long idleMs = Long.parseLong(options.getOrDefault("idle-ms", String.valueOf(IDLE_MS)));
+        long takeoverMs = Long.parseLong(options.getOrDefault("takeover-ms", String.valueOf(TAKEOVER_MS)));
+        long memoryBudget = options.containsKey("memory-budget") ? Util.parseBytes(options.get("memory-budget")) : MEMORY_BUDGET;
+        if (shardCount < 1 || sessionQueue < 1 || ackEvery < 1 || ackDelayMs < 1 || idleMs < 1) {
+            System.err.println("--shards, --session-queue, --ack-every, --ack-delay-ms and --idle-ms must be at least 1");
             System.exit(1);
         }
 
-        try (DatagramSocket socket = new DatagramSocket(port)) {
-            System.out.println("UDP Server listening on port " + port);
+        // With SO_REUSEPORT every shard binds the same port and the kernel spreads clients across them.
+        // Without it (or with --port-range) shard i gets port + i and clients are told where to send data
+        boolean reusePort = !options.containsKey("port-range") && supportsReusePort();
+        int lastPort = reusePort ? port : port + shardCount - 1;
+        for (int p = port; p <= lastPort; p++) {
+            if (!isPortSafe(p) || !isPortAvailable(p)) {
+                System.err.println("Unsafe or unavailable port: " + p);
+                System.exit(1);
+            }
+        }
 
-            byte[] buffer = new byte[BUFFER_SIZE];
-            ExecutorService threadPool = Executors.newFixedThreadPool(8); // up to 8 clients concurrently
+        ExecutorService threadPool = newSessionExecutor(options.getOrDefault("executor", "virtual"));
+        // The memory budget is the receive buffer pools: once every buffer is queued up in a session,
+        // data packets are dropped without an ACK until the writers catch up, which slows the senders down
+        int buffersPerShard = (int) Math.max(MIN_SHARD_BUFFERS, memoryBudget / Protocol.MAX_DATAGRAM / shardCount);
+        File checkpointDir = new File(options.getOrDefault("checkpoint-dir", ".checkpoints"));
+        CheckpointStore checkpoints = new CheckpointStore(checkpointDir,
+                TimeUnit.MILLISECONDS.toNanos(Long.parseLong(options.getOrDefault("checkpoint-ms", "1000"))));
+        ChunkIndex chunkIndex = new ChunkIndex(new File(checkpointDir, "chunks.idx"));
+        OutputNames names = new OutputNames();
+        ServerMetrics metrics = new ServerMetrics();
+        BlockCache cache = new BlockCache(options.containsKey("cache-size") ? Util.parseBytes(options.get("cache-size")) : CACHE_SIZE, metrics);
+        registerMBean(metrics, ServerMetricsMBean.class, "Assignment2svr:type=Server");
+        long statsMs = Long.parseLong(options.getOrDefault("stats-ms", String.valueOf(STATS_MS)));
+        if (statsMs > 0) metrics.startDumping(statsMs);
+        ServerConfig config = new ServerConfig(reusePort, buffersPerShard, sessionQueue, Durability.parse(options),
+                checkpoints, chunkIndex, names, cache, metrics, ackEvery, TimeUnit.MILLISECONDS.toNanos(ackDelayMs),
+                TimeUnit.MILLISECONDS.toNanos(idleMs), TimeUnit.MILLISECONDS.toNanos(takeoverMs));
+        ReceiveShard[] shards = new ReceiveShard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new ReceiveShard(reusePort ? port : port + i, config, threadPool, shards);
+        }
+        System.out.println("UDP Server listening on port " + (reusePort ? port : port + "-" + lastPort)
+                + " with " + shardCount + " receive shard(s)" + (reusePort ? " (SO_REUSEPORT)" : ""));
 
-            // We assume the server wants to listen indefinitely, delegating to threads
-            while (true) {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
+        // We assume the server wants to listen indefinitely, delegating to threads.
+        // Shard 0 runs right here, the others get a thread each
+        for (int i = 1; i < shardCount; i++) {
+            new Thread(shards[i], "receive-" + i).start();
+        }
+        shards[0].run();
+    }
 
-                ClientKey key = new ClientKey(packet.getAddress(), packet.getPort());
-                String msg = new String(packet.getData(), 0, packet.getLength());
+    // Helper methods
 
-                // Handle control packets (META headers)
-                if (msg.startsWith(HEADER_PREFIX)) {
-                    if (msg.startsWith(HEADER_FILENAME)) {
-                        handleFileStart(socket, threadPool, key, msg.substring(HEADER_FILENAME.length()));
-                    } else if (msg.equals(HEADER_END)) {
-                        handleFileEnd(socket, key);
-                    }
-                    continue;
-                }
+    private static void sendAck(DatagramChannel channel, SocketAddress to, ClientKey key, byte answers, int seq) throws IOException {
+        sendReply(channel, to, key, Protocol.OP_ACK, answers, seq);
+    }
 
-                // Handle raw data packets
-                handleFileData(socket, key, packet);
-            }
+    private static void sendNack(DatagramChannel channel, SocketAddress to, ClientKey key, byte answers, int seq) throws IOException {
+        sendReply(channel, to, key, Protocol.OP_NACK, answers, seq);
+    }
+
+    private static void sendReply(DatagramChannel channel, SocketAddress to, ClientKey key, byte opcode, byte answers, int seq)
+            throws IOException {
+        // The sequence number being ACKNOWLEDGED, so the client knows exactly which packet arrived
+        ByteBuffer ack = ackBuffer.get();
+        ack.clear();
+        Protocol.putHeader(ack, opcode, key.transfer(), seq, 0, answers);
+        channel.send(ack.flip(), to);
+    }
+
+    private static void sendManifestAck(DatagramChannel channel, SocketAddress to, ClientKey key, int firstBlock, long known) throws IOException {
+        // Bit i of known is set when we have block firstBlock + i
+        ByteBuffer ack = ackBuffer.get();
+        ack.clear();
+        Protocol.putHeader(ack, Protocol.OP_ACK, key.transfer(), Protocol.CONTROL_SEQ, 0, Protocol.OP_MANIFEST).putInt(firstBlock).putLong(known);
+        channel.send(ack.flip(), to);
+    }
+
+    private static void sendStartAck(DatagramChannel channel, SocketAddress to, ClientKey key, int payloadSize, int dataPort,
+                                     Checkpoint resume, int flags) throws IOException {
+        // Handshake ACKs carry the payload size the server agreed to, the port to send data to,
+        // the byte ranges we already have when this upload is being resumed and the agreed features
+        ByteBuffer ack = ackBuffer.get();
+        ack.clear();
+        Protocol.putHeader(ack, Protocol.OP_ACK, key.transfer(), Protocol.CONTROL_SEQ, 0, Protocol.OP_START).putInt(payloadSize).putInt(dataPort);
+        if (resume == null) {
+            ack.putInt(0);
+        } else {
+            resume.putRanges(ack, 4);
         }
+        ack.putInt(flags);
+        channel.send(ack.flip(), to);
     }
 
-    // Actual file handlers
+    // Monitoring is optional, a server that can't publish its counters still serves uploads
+    private static <T> void registerMBean(T mbean, Class<T> type, String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(mbean, type), new ObjectName(name));
+        } catch (JMException e) {
+            System.err.println("Could not register MBean " + name + ": " + e.getMessage());
+        }
+    }
 
-    private static void handleFileStart(DatagramSocket socket, ExecutorService pool, ClientKey key, String filename) throws IOException {
-        File file = getUniqueFile(filename);
-        ClientSession session = new ClientSession(socket, key, file);
-        sessions.put(key, session);
-        pool.submit(session);
+    private static void unregisterMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+        } catch (JMException e) {
+            // never registered, or already gone
+        }
+    }
 
-        session.sendAck(); // Let client know, server has completed the file
-        System.out.printf("Session started %s : saving file as '%s'%n", key, file.getName());
+    // The key=value lines after the first (the filename) of a START or GET
+    private static Map<String, String> parseRequestOptions(String[] lines) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int eq = lines[i].indexOf('=');
+            if (eq != -1) options.put(lines[i].substring(0, eq), lines[i].substring(eq + 1));
+        }
+        return options;
     }
 
-    private static void handleFileEnd(DatagramSocket socket, ClientKey key) throws IOException {
-        ClientSession session = sessions.remove(key);
-        if (session != null) {
-            session.close();
-            System.out.printf("Completed transfer from %s (%d bytes)%n", key, session.getTotalBytes());
+    // A number from a START line, -1 when there is no such line and -2 when it isn't a number of at least 0
+    private static long requestNumber(Map<String, String> options, String name) {
+        String value = options.get(name);
+        if (value == null) return -1;
+        try {
+            long n = Long.parseLong(value.trim());
+            return n >= 0 ? n : -2;
+        } catch (NumberFormatException e) {
+            return -2;
         }
-        sendAck(socket, key.address(), key.port());
     }
 
-    private static void handleFileData(DatagramSocket socket, ClientKey key, DatagramPacket packet) throws IOException {
-        ClientSession session = sessions.get(key);
-        if (session != null) {
-            session.queueData(Arrays.copyOf(packet.getData(), packet.getLength()));
-            sendAck(socket, key.address(), key.port());
-        } else {
-            System.err.printf("Data received without active session from %s%n", key);
+    // A name right in the directory uploads are saved to, that isn't hidden (like the part files of running uploads)
+    private static boolean isPlainName(String name) {
+        return !name.isEmpty() && !name.startsWith(".") && name.indexOf('/') < 0 && name.indexOf(File.separatorChar) < 0;
+    }
+
+    // Only plain files right in the directory uploads are saved to can be downloaded, and never the hidden
+    // part file of one that is still running
+    private static File servedFile(String name) {
+        if (!isPlainName(name)) return null;
+        File file = new File(name);
+        return file.isFile() ? file : null;
+    }
+
+    // Clients ask for a payload size, we cap it at what fits in one datagram. Old clients don't ask at all
+    private static int negotiatePayload(String requested) {
+        if (requested == null) return BUFFER_SIZE;
+        try {
+            return Math.max(1, Math.min(Integer.parseInt(requested.trim()), Protocol.MAX_PAYLOAD));
+        } catch (NumberFormatException e) {
+            return BUFFER_SIZE;
         }
     }
 
-    // Helper methods
+    /**
+     * Sessions spend nearly all their time blocked on their queue or on the disk, so by default each one
+     * gets a virtual thread (Java 21+). Older JVMs fall back to a cached pool, which likewise never
+     * leaves a session waiting for a free thread. fixed:N caps the threads, later sessions then wait.
+     */
+    private static ExecutorService newSessionExecutor(String kind) {
+        if (kind.startsWith("fixed:")) {
+            return Executors.newFixedThreadPool(Integer.parseInt(kind.substring("fixed:".length())));
+        }
+        if (kind.equals("cached")) {
+            return Executors.newCachedThreadPool();
+        }
+        if (kind.equals("virtual")) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads need Java 21+, running sessions on a cached thread pool instead");
+                return Executors.newCachedThreadPool();
+            }
+        }
+        throw new IllegalArgumentException("Unknown executor: " + kind);
+    }
 
-    private static void sendAck(DatagramSocket socket, InetAddress addr, int port) throws IOException {
-        // A byte empty request to let the client listening on the socket to ACKNOWLEDGE
-        socket.send(new DatagramPacket(new byte[]{1}, 1, addr, port));
+    private static boolean supportsReusePort() {
+        try (DatagramChannel probe = DatagramChannel.open(StandardProtocolFamily.INET)) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     // Check if port is available, as in NOT in use
+    @SuppressWarnings("try") // the socket is only opened to see whether it binds
     private static boolean isPortAvailable(int port) {
         try (DatagramSocket ignored = new DatagramSocket(port)) {
             return true; // If it can bind, it’s free
@@ -133,36 +359,495 @@ public class Assignment2svr {
 
 
     /**
-     * We need to use this to generate a unique file name in case one already exists with it
-     * locally on the server side.
-     * Example: appending a copy number at the end, example.txt --> example(1).txt
+     * Represents a unique client identified by IP + port that we can use in the Concurrent Hash Map.
+     * A client socket that multiplexes several uploads numbers them, and each is a client of its own.
+     * Transfer 0 is a socket's only upload (or the socket itself)
      */
-    private static File getUniqueFile(String baseName) {
-        File file = new File(baseName);
-        if (!file.exists()) return file;
+    static record ClientKey(InetAddress address, int port, int transfer) {
+        static ClientKey of(InetSocketAddress address) {
+            return new ClientKey(address.getAddress(), address.getPort(), 0);
+        }
 
-        String name = baseName;
-        String ext = "";
-        int dotIndex = baseName.lastIndexOf('.');
-        if (dotIndex != -1) {
-            name = baseName.substring(0, dotIndex);
-            ext = baseName.substring(dotIndex);
+        ClientKey withTransfer(int transfer) {
+            return transfer == this.transfer ? this : new ClientKey(address, port, transfer);
         }
 
-        int count = 1;
-        while (file.exists()) {
-            file = new File(name + "(" + count++ + ")" + ext);
+        @Override
+        public String toString() {
+            return address.getHostAddress() + ":" + port + (transfer != 0 ? "#" + transfer : "");
         }
-        return file;
     }
 
     /**
-     * Represents a unique client identified by IP + port that we can use in the Concurrent Hash Map
+     * One receive loop with its own channel, buffer pool and share of the sessions. Only this shard's
+     * thread ever receives, looks up sessions or sends data ACKs on its channel, so shards never contend.
+     * The shard's timers live in a hashed timing wheel that only its thread touches, and the loop's
+     * select times out when the next one is due: a stream's held back data ACK, and the idle timer of
+     * every main session it owns. A session whose upload hears nothing from its client for the idle
+     * timeout is expired, so a client that vanished (or whose END got lost for good) doesn't keep its
+     * session and writer thread forever.
+     * With SO_REUSEPORT the kernel hashes each client to one shard; with a port range the shard that
+     * gets the handshake picks the owner by ClientKey hash and tells the client to use the owner's port.
      */
-    private static record ClientKey(InetAddress address, int port) {
+    static class ReceiveShard implements Runnable {
+        private final int port;
+        private final ServerConfig config;
+        private final ExecutorService pool;
+        private final ReceiveShard[] shards;
+        private final DatagramChannel channel;
+        private final Selector selector;
+        final BufferPool bufferPool;
+        // Other shards' handshakes and finished sessions also touch this map, lookups happen on our thread
+        final ConcurrentHashMap<ClientKey, ClientSession> sessions = new ConcurrentHashMap<>();
+        // Recent uploads whose file digest didn't match, so a repeated END (our NACK got lost) is NACKed again
+        private final Map<ClientKey, Boolean> failedKeys = Collections.synchronizedMap(new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ClientKey, Boolean> eldest) {
+                return size() > MAX_FAILED_KEYS;
+            }
+        });
+        private final CRC32C checksum = new CRC32C(); // only used on this shard's receive thread
+        private final TimingWheel<TimingWheel.Timer> timers; // likewise
+        private final ConcurrentHashMap<ClientKey, DownloadSession> downloads = new ConcurrentHashMap<>(); // running ones, by the client that asked
+        // Main sessions started by other shards' handshakes, waiting for their idle timer on ours
+        private final Queue<ClientSession> adopted = new ConcurrentLinkedQueue<>();
+        private long now = System.nanoTime(); // as of this loop's last wakeup, close enough for timers and idle times
+        private SocketAddress lastSender; // and its key, only touched by this shard's thread
+        private ClientKey lastKey;
+
+        ReceiveShard(int port, ServerConfig config, ExecutorService pool, ReceiveShard[] shards) throws IOException {
+            this.port = port;
+            this.config = config;
+            this.pool = pool;
+            this.shards = shards;
+            this.bufferPool = new BufferPool(config.buffersPerShard(), Protocol.MAX_DATAGRAM);
+            this.timers = new TimingWheel<>(TIMER_TICK_NANOS, TIMER_SLOTS, now);
+            this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            if (config.reusePort()) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_RECEIVE_BUFFER);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            this.selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+
         @Override
-        public String toString() {
-            return address.getHostAddress() + ":" + port;
+        public void run() {
+            // When every pooled buffer is sitting in a session queue we still need somewhere to receive
+            // into. Control packets are handled from it as usual, data packets are dropped unACKed
+            ByteBuffer scratch = ByteBuffer.allocateDirect(Protocol.MAX_DATAGRAM);
+            ByteBuffer buffer = bufferPool.acquire(scratch);
+            int received = 0;
+
+            try (channel; selector) {
+                while (true) {
+                    now = System.nanoTime();
+                    runTimers();
+                    // The only key is our channel, so we just drain it below. Never 0, that would wait for good
+                    long next = timers.nextDeadline();
+                    selector.select(ready -> { }, next == Long.MAX_VALUE ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(next - now + 999_999)));
+                    now = System.nanoTime();
+                    SocketAddress sender;
+                    while ((sender = channel.receive(buffer)) != null) {
+                        buffer.flip();
+                        // A busy channel may never leave us in select, the timers still have to run
+                        if (++received % 64 == 0) {
+                            now = System.nanoTime();
+                            runTimers();
+                        }
+                        boolean kept = receive(sender, buffer, buffer != scratch);
+                        if (kept || buffer == scratch) {
+                            buffer = bufferPool.acquire(scratch); // the session kept this one, or we were out of buffers
+                        } else {
+                            buffer.clear();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.printf("Receive loop on port %d stopped: %s%n", port, e.getMessage());
+            }
+        }
+
+        // Arms the idle timers of sessions handed to us, then fires every timer that is due
+        private void runTimers() throws IOException {
+            ClientSession session;
+            while ((session = adopted.poll()) != null) {
+                timers.schedule(session, now + config.idleNanos());
+            }
+            TimingWheel.Timer timer;
+            while ((timer = timers.poll(now)) != null) {
+                if (timer instanceof AckState acks) {
+                    // Sent any ACK since this one started waiting, it is cancelled, so something is still waiting
+                    sendDataAck(acks.session.address, acks.session.key, acks);
+                } else if (timer instanceof ClientSession expiring && !expiring.isClosing()) {
+                    // Packets to any of its streams count, and they don't touch the timer themselves
+                    long idleSince = expiring.transfer.lastPacketAt();
+                    if (now - idleSince >= config.idleNanos()) {
+                        expiring.expire();
+                        config.metrics().expired.increment();
+                    } else {
+                        timers.schedule(expiring, idleSince + config.idleNanos());
+                    }
+                }
+            }
+        }
+
+        private void sendDataAck(SocketAddress to, ClientKey key, AckState acks) throws IOException {
+            ByteBuffer ack = ackBuffer.get();
+            ack.clear();
+            acks.putAck(ack, key.transfer());
+            channel.send(ack.flip(), to);
+            config.metrics().acks.increment();
+        }
+
+        /**
+         * Handles one received datagram, as the loop does for each (Assignment2bench times this too).
+         * Returns true when a session took ownership of the buffer.
+         */
+        boolean receive(SocketAddress sender, ByteBuffer packet, boolean pooled) throws IOException {
+            // The channel hands back the same address object for consecutive packets from one sender
+            if (sender != lastSender) {
+                lastSender = sender;
+                lastKey = ClientKey.of((InetSocketAddress) sender);
+            }
+            return handlePacket(sender, lastKey, packet, pooled);
+        }
+
+        // Dispatches one datagram on its opcode
+        private boolean handlePacket(SocketAddress sender, ClientKey key, ByteBuffer packet, boolean pooled) throws IOException {
+            if (!Protocol.isFrame(packet)) {
+                config.metrics().malformed.increment();
+                return false;
+            }
+            // Uploads that share a client socket each have their own session
+            int transfer = packet.getInt(Protocol.TRANSFER_AT);
+            if (transfer != 0) key = key.withTransfer(transfer);
+
+            // Whatever a client sends, one bad datagram must not take the whole shard down with it
+            try {
+                switch (packet.get(Protocol.OPCODE_AT)) {
+                    case Protocol.OP_DATA, Protocol.OP_PARITY -> {
+                        return handleFileData(sender, key, packet, pooled);
+                    }
+                    case Protocol.OP_START -> handleFileStart(sender, key, StandardCharsets.UTF_8.decode(packet.position(Protocol.HEADER_SIZE)).toString());
+                    // With the client's hex digest of the file as the body when it wants the file verified
+                    case Protocol.OP_END -> handleFileEnd(sender, key, packet.remaining() > Protocol.HEADER_SIZE
+                            ? StandardCharsets.US_ASCII.decode(packet.position(Protocol.HEADER_SIZE)).toString() : null);
+                    case Protocol.OP_MANIFEST -> handleManifest(sender, key, packet.position(Protocol.HEADER_SIZE));
+                    case Protocol.OP_PROBE -> sendAck(channel, sender, key, Protocol.OP_PROBE, packet.remaining());
+                    case Protocol.OP_GET -> handleGet(sender, key, StandardCharsets.UTF_8.decode(packet.position(Protocol.HEADER_SIZE)).toString());
+                    default -> config.metrics().malformed.increment();
+                }
+            } catch (RuntimeException e) {
+                config.metrics().malformed.increment();
+                System.err.printf("Dropped a malformed packet from %s: %s%n", key, e);
+            }
+            return false;
+        }
+
+        // Actual file handlers
+
+        private void handleFileStart(SocketAddress sender, ClientKey key, String header) throws IOException {
+            // The first line is the filename, any lines after it are key=value options from the client
+            String[] lines = header.split("\n");
+            if (!isPlainName(lines[0])) {
+                // Anything else could write its part file, and the file it is renamed to, outside the directory
+                System.err.printf("Refused an upload from %s: '%s' is not a plain file name%n", key, lines[0]);
+                sendNack(channel, sender, key, Protocol.OP_START, Protocol.CONTROL_SEQ);
+                return;
+            }
+            Map<String, String> options = parseRequestOptions(lines);
+            // All of a socket's uploads go to the same shard, they share its port
+            ReceiveShard owner = config.reusePort() ? this : shards[Math.floorMod(key.withTransfer(0).hashCode(), shards.length)];
+
+            int payloadSize = negotiatePayload(options.get("payload"));
+            // A parity packet needs room for its group descriptor on top of a whole payload
+            if ("1".equals(options.get("fec"))) payloadSize = Math.min(payloadSize, Protocol.MAX_PAYLOAD - Protocol.PARITY_DESCRIPTOR);
+
+            // Only uploads that tell us their id and size can be checkpointed and resumed
+            String id = options.get("id");
+            long size = requestNumber(options, "size");
+            if (size < -1) {
+                config.metrics().malformed.increment();
+                System.err.printf("Dropped a handshake from %s with a bad size: %s%n", key, options.get("size"));
+                return;
+            }
+            if (id != null && (!TRANSFER_ID.matcher(id).matches() || size < 0)) id = null;
+            // A random id for this run of the client, which its extra streams repeat. Old clients don't send one
+            String attempt = options.get("attempt");
+            if (attempt != null && !TRANSFER_ID.matcher(attempt).matches()) attempt = null;
+            CheckpointStore checkpoints = config.checkpoints();
+            Transfer active = id == null ? null : checkpoints.active(id);
+            // The transfer this run of the client started, which another client uploading the same file can't join
+            Transfer mine = attempt != null ? checkpoints.attempt(attempt) : active;
+            ClientSession existing = mine == null ? null : mine.stream(key);
+            if (existing != null && !existing.isClosing()) {
+                // Our handshake ACK got lost and the client asked again, the session is already running
+                sendStartAck(channel, sender, key, mine.payloadSize, existing.owner.port, mine.id == null ? null : checkpoints.get(mine.id),
+                        mine.flags());
+                return;
+            }
+
+            // Extra streams of a multi-stream upload join the transfer their main stream started.
+            // They are sessions of their own, in whichever shard their socket lands on
+            long stream = requestNumber(options, "stream");
+            if (stream < -1) {
+                config.metrics().malformed.increment();
+                System.err.printf("Dropped a handshake from %s with a bad stream number: %s%n", key, options.get("stream"));
+                return;
+            }
+            if (stream > 0) {
+                if (mine == null || mine.isClosing()) {
+                    System.err.printf("Stream %d from %s is for an upload that isn't running%n", stream, key);
+                    return;
+                }
+                startSession(owner, new ClientSession(owner, sender, key, mine, false));
+                sendStartAck(channel, sender, key, mine.payloadSize, owner.port, null, mine.flags());
+                System.out.printf("Session started %s : stream %d of '%s' (port %d)%n", key, stream, mine.file.getName(), owner.port);
+                return;
+            }
+
+            // The same id means the same file (name, size and modification time), but not the same client. From the
+            // host that is sending it, it is a rerun after a crash or Ctrl-C, and takes over at once. From another host,
+            // one that is still sending is someone else uploading it too: taking over would cut them off, so this upload
+            // gets a name of its own instead, and can't be resumed. A transfer gone quiet is anyone's to take over
+            if (active != null && !active.isClosing() && !key.address().equals(active.main().key.address())
+                    && now - active.lastPacketAt() < config.takeoverNanos()) {
+                System.out.printf("Transfer %s is running for %s, saving the one from %s separately%n", id, active.main().key, key);
+                id = null;
+                active = null;
+            }
+
+            // A client coming back for an upload we have part of gets the same output file and payload
+            // size (the checkpoint counts in chunks). If the old transfer is still running, it saves a
+            // final checkpoint and stops, and the new one picks up from there once it has
+            Checkpoint checkpoint = id == null ? null : checkpoints.get(id);
+            if (checkpoint != null && checkpoint.size() != size) checkpoint = null;
+            File file;
+            if (active != null) {
+                file = active.file;
+                payloadSize = active.payloadSize;
+                active.main().suspend();
+            } else if (checkpoint != null) {
+                file = checkpoint.file();
+                payloadSize = checkpoint.payloadSize();
+            } else {
+                file = config.names().reserve(lines[0]);
+            }
+
+            boolean integrity = "1".equals(options.get("integrity")) && size >= 0;
+            boolean compress = "deflate".equals(options.get("compress"));
+            boolean dedup = "1".equals(options.get("dedup")) && size >= 0;
+            // Rebuilt chunks need to know how long the last one is. A resumed upload may be stuck with too big a payload
+            boolean fec = "1".equals(options.get("fec")) && size >= 0 && payloadSize <= Protocol.MAX_PAYLOAD - Protocol.PARITY_DESCRIPTOR;
+            Transfer transfer = new Transfer(id, attempt, size, payloadSize, file, integrity, compress, dedup, fec, active);
+            startSession(owner, new ClientSession(owner, sender, key, transfer, true));
+            checkpoints.activate(transfer);
+
+            // Let client know, server has completed the file, and where the rest of the upload should go
+            sendStartAck(channel, sender, key, payloadSize, owner.port, checkpoint, transfer.flags());
+            System.out.printf("Session started %s : %s '%s' (%d byte packets, port %d)%n", key,
+                    active != null || checkpoint != null ? "resuming file" : "saving file as", file.getName(), payloadSize, owner.port);
+        }
+
+        // A download runs from a socket of its own, on a session thread. A repeated GET (our ACK got lost) gets the
+        // same answer again
+        private void handleGet(SocketAddress sender, ClientKey key, String request) throws IOException {
+            String[] lines = request.split("\n");
+            DownloadSession download = downloads.get(key);
+            if (download == null) {
+                File file = servedFile(lines[0]);
+                if (file == null) {
+                    System.err.printf("Download of '%s' from %s: no such file%n", lines[0], key);
+                    sendNack(channel, sender, key, Protocol.OP_GET, Protocol.CONTROL_SEQ);
+                    return;
+                }
+                Map<String, String> options = parseRequestOptions(lines);
+                try {
+                    download = new DownloadSession(this, sender, key, file, negotiatePayload(options.get("payload")),
+                            "1".equals(options.get("integrity")));
+                } catch (IOException e) {
+                    System.err.printf("Download of '%s' from %s: %s%n", lines[0], key, e.getMessage());
+                    sendNack(channel, sender, key, Protocol.OP_GET, Protocol.CONTROL_SEQ);
+                    return;
+                }
+                downloads.put(key, download);
+                pool.submit(download);
+                System.out.printf("Download started %s : '%s' (%d bytes, %d byte packets, port %d)%n", key, file.getName(),
+                        download.size, download.payloadSize, download.port);
+            }
+            ByteBuffer ack = ackBuffer.get();
+            ack.clear();
+            Protocol.putHeader(ack, Protocol.OP_ACK, key.transfer(), Protocol.CONTROL_SEQ, 0, Protocol.OP_GET).putInt(download.payloadSize).putLong(download.size)
+                    .putInt(download.port).putInt(download.integrity ? Protocol.FLAG_INTEGRITY : 0);
+            channel.send(ack.flip(), sender);
+        }
+
+        private void startSession(ReceiveShard owner, ClientSession session) {
+            session.transfer.addStream(session);
+            owner.sessions.put(session.key, session);
+            pool.submit(session);
+            // The main session keeps time for the whole upload, on the wheel of the shard that owns it
+            if (session.main) {
+                owner.adopted.add(session);
+                if (owner != this) owner.selector.wakeup();
+            }
+        }
+
+        // The session sends the ACK once its file is written. A repeated END while it is still finishing
+        // gets no reply, and one for a session that is already gone means our earlier ACK was lost
+        private void handleFileEnd(SocketAddress sender, ClientKey key, String digest) throws IOException {
+            ClientSession session = sessions.get(key);
+            if (session == null) {
+                if (failedKeys.containsKey(key)) {
+                    sendNack(channel, sender, key, Protocol.OP_END, Protocol.CONTROL_SEQ);
+                } else {
+                    sendAck(channel, sender, key, Protocol.OP_END, Protocol.CONTROL_SEQ);
+                }
+            } else if (!session.isClosing()) {
+                session.finish(digest);
+            }
+        }
+
+        // Block hashes of the upload. Copying known blocks can take a while, so the session does it on its
+        // writer thread and ACKs the manifest itself. Without a session that dedups, we have nothing
+        private void handleManifest(SocketAddress sender, ClientKey key, ByteBuffer manifest) throws IOException {
+            ClientSession session = sessions.get(key);
+            if (session == null || !session.transfer.dedup || manifest.remaining() < 8) {
+                sendManifestAck(channel, sender, key, manifest.remaining() >= 4 ? manifest.getInt(manifest.position()) : 0, 0);
+                return;
+            }
+            session.lastPacketAt = now;
+            byte[] copy = new byte[manifest.remaining()];
+            manifest.get(copy);
+            session.queueManifest(copy);
+        }
+
+        private boolean handleFileData(SocketAddress sender, ClientKey key, ByteBuffer packet, boolean pooled) throws IOException {
+            ClientSession session = sessions.get(key);
+            if (session == null) {
+                System.err.printf("Data received without active session from %s%n", key);
+                return false;
+            }
+            // The header has the sequence number and the file offset this data belongs at, the file data follows.
+            // The session reads the offset back out of the buffer, so nothing is copied here
+            session.lastPacketAt = now;
+            int seq = packet.getInt(Protocol.SEQ_AT);
+            int headerSize = session.transfer.headerSize;
+            // Anything that fails its checksum is NACKed straight away, so the client resends it without waiting out its RTO
+            ServerMetrics metrics = config.metrics();
+            if (packet.remaining() < headerSize || session.transfer.integrity && !checksumMatches(packet, headerSize)) {
+                metrics.nacks.increment();
+                sendNack(channel, sender, key, packet.get(Protocol.OPCODE_AT), seq);
+                return false;
+            }
+            packet.position(headerSize);
+
+            // Data only ever goes at a chunk of the file, and is at most a chunk long (a parity packet has its group
+            // descriptor on top). Anything else would land outside the file or outside the chunk bitmap, so it is dropped
+            int length = packet.remaining();
+            long offset = packet.getLong(Protocol.OFFSET_AT);
+            int maxLength = session.transfer.payloadSize + (packet.get(Protocol.OPCODE_AT) == Protocol.OP_PARITY ? Protocol.PARITY_DESCRIPTOR : 0);
+            if (!session.transfer.isChunkOffset(offset) || length > maxLength) {
+                metrics.malformed.increment();
+                System.err.printf("Dropped a data packet from %s: offset %d and %d bytes don't fit the file%n", key, offset, length);
+                return false;
+            }
+
+            // No free buffer or a full session queue: drop it without an ACK and the client will resend it later.
+            // Holding back the ACK is our backpressure, the client's congestion window shrinks on the timeout
+            if (!pooled || !session.queueData(packet)) {
+                metrics.dropped.increment();
+                return false;
+            }
+            metrics.packets.increment();
+            metrics.bytes.add(length);
+            session.receivedPackets++;
+            // A parity packet shares its sequence number with the first packet of its group, it gets no ACK
+            if (packet.get(Protocol.OPCODE_AT) == Protocol.OP_DATA) {
+                int waiting = session.acks.arrived(seq, config.ackEvery());
+                if (waiting == 0) {
+                    timers.cancel(session.acks);
+                    sendDataAck(sender, key, session.acks);
+                } else if (waiting == 1) {
+                    timers.schedule(session.acks, now + config.ackDelayNanos());
+                }
+            }
+            return true;
+        }
+
+        // CRC32C of the rest of the header and the data, compared with the one the client ended the header with
+        private boolean checksumMatches(ByteBuffer packet, int headerSize) {
+            int end = packet.limit();
+            checksum.reset();
+            checksum.update(packet.limit(headerSize - Protocol.CRC_SIZE).position(0));
+            checksum.update(packet.limit(end).position(headerSize));
+            packet.position(0);
+            return (int) checksum.getValue() == packet.getInt(headerSize - Protocol.CRC_SIZE);
+        }
+    }
+
+    /**
+     * Which sequence numbers of one stream have arrived, for its coalesced data ACKs. Every one below
+     * the cumulative point has, and a ring of bits remembers the ones above it (a client never has
+     * anywhere near that many in flight). An ACK is the cumulative point as its sequence number, then
+     * the count and start/end (exclusive) pairs of the runs above it that arrived, lowest first.
+     * In-order arrivals are ACKed every ackEvery packets, or once the first of them has waited the ACK
+     * delay. Anything else (a gap opening, anything while there is one, a duplicate) is ACKed at once.
+     * The receive thread records arrivals and sends the ACKs, the writer records the packets it rebuilt.
+     * It is its own timer for the ACK delay, on the wheel of the shard that receives the stream.
+     */
+    static class AckState extends TimingWheel.Timer {
+        private static final int RING = 4096; // sequence numbers past the cumulative point that we can remember
+        private final long[] arrived = new long[RING / 64];
+        private int cumulative = 0;
+        private int highest = -1;
+        private int waiting = 0; // arrivals since the last ACK
+        private final ClientSession session;
+
+        AckState(ClientSession session) {
+            this.session = session;
+        }
+
+        // Records a data packet and returns how many arrivals now wait for an ACK, 0 when it should be sent right away
+        synchronized int arrived(int seq, int ackEvery) {
+            boolean inOrder = seq == cumulative && seq - highest == 1;
+            record(seq);
+            waiting++;
+            return !inOrder || waiting >= ackEvery ? 0 : waiting;
+        }
+
+        // Ones below the cumulative point are already counted, ones too far past it can't be (the client resends those)
+        synchronized void record(int seq) {
+            int ahead = seq - cumulative;
+            if (ahead < 0 || ahead >= RING) return;
+            arrived[(seq & (RING - 1)) >>> 6] |= 1L << seq;
+            if (seq - highest > 0) highest = seq;
+            while (isSet(cumulative)) {
+                arrived[(cumulative & (RING - 1)) >>> 6] &= ~(1L << cumulative);
+                cumulative++;
+            }
+        }
+
+        private boolean isSet(int seq) {
+            return (arrived[(seq & (RING - 1)) >>> 6] & (1L << seq)) != 0;
+        }
+
+        synchronized void putAck(ByteBuffer ack, int transfer) {
+            Protocol.putHeader(ack, Protocol.OP_ACK, transfer, cumulative, 0, Protocol.OP_DATA);
+            int countAt = ack.position();
+            ack.putInt(0);
+            int ranges = 0;
+            // The cumulative point itself is always missing, or it would have moved on
+            for (int seq = cumulative + 1; seq - highest <= 0 && ranges < Protocol.MAX_SACK_RANGES; seq++) {
+                if (!isSet(seq)) continue;
+                int start = seq;
+                while (seq - highest < 0 && isSet(seq + 1)) seq++;
+                ack.putInt(start).putInt(seq + 1);
+                ranges++;
+            }
+            ack.putInt(countAt, ranges);
+            waiting = 0;
         }
     }
 
@@ -171,51 +856,1524 @@ public class Assignment2svr {
      * Helper class for a client session. This handles individual client's and their thread
      * for file transfer. It handles taking incoming data from a queue in case the thread is
      * busy until file transfer is complete.
+     * Packets can arrive out of order (or twice, when an ACK was lost), so each one is written
+     * straight to its own offset, and the transfer's bitmap of written chunks lets us skip duplicates.
+     * The queue holds the pooled receive buffers themselves, each goes back to the pool once written.
+     * It is bounded, so a slow writer can only ever hold queueCapacity buffers of its shard's pool.
+     * Whatever is queued is written together: buffers are sorted by offset and each run of adjacent
+     * ones goes to disk in a single gathering write.
+     * Deflated chunks are inflated here on the writer thread, into a buffer of the session's own that
+     * takes the packet's place in the run, so compression costs the receive loop nothing.
+     * Manifests are handled here too: each block the chunk index knows is read from wherever it was
+     * seen before, checked against its hash and written into place, then the manifest is ACKed.
+     * So are parity packets, after the batch they came in is written. One whose group is missing a
+     * single chunk rebuilds it from the others (read back from the file) and ACKs it as RECOVERED.
+     * One whose group is missing more waits, in case the rest turns up, until newer ones push it out.
+     * A multi-stream upload has one session per stream, each in the shard its client socket lands on,
+     * all writing into the same Transfer. The main (first) stream's session does the bookkeeping for
+     * all of them: it checkpoints, and when the END packet arrives it closes the other streams and waits
+     * for their writers before finishing.
+     * The main session ACKs the END itself once everything is written (and synced, if the durability
+     * policy asks for it), so the client only hears "done" when the file really is.
+     * Uploads with a transfer id checkpoint the bitmap every checkpoint interval, after forcing the
+     * data it covers to disk. A resumed upload starts from the latest checkpoint and skips what it lists.
+     * A main session is also the idle timer of its upload. When it expires, an upload with a transfer id
+     * is checkpointed like a suspended one, so the client can still resume it, and any other upload's
+     * partial file is deleted.
      */
-    private static class ClientSession implements Runnable {
-        private final DatagramSocket socket;
+    static class ClientSession extends TimingWheel.Timer implements Runnable, SessionMBean {
+        private static final int MAX_BATCH = 64; // buffers per drain, well under the writev limit
+        private static final int MAX_WAITING_PARITIES = 16; // parity packets kept for groups still missing more than one chunk
+        private static final long IDLE_WAIT_MS = 100; // how often an idle writer checks for close / periodic sync
+        private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0); // queued by close() to wake the writer
+        private static final ByteBuffer WAKE_UP = ByteBuffer.allocate(0); // queued with a manifest, so it isn't left waiting
+        private static final Comparator<ByteBuffer> BY_OFFSET = Comparator.comparingLong(packet -> packet.getLong(Protocol.OFFSET_AT));
+
+        private final ReceiveShard owner;
+        private final SocketAddress address;
         private final ClientKey key;
-        private final File file;
-        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+        private final Transfer transfer;
+        private final boolean main; // the stream that did the handshake and sends the END
+        private final BlockingQueue<ByteBuffer> queue;
+        private final Durability durability;
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final List<ByteBuffer> batch = new ArrayList<>(MAX_BATCH);
+        private final ByteBuffer[] run = new ByteBuffer[MAX_BATCH];
+        private final int[] runPositions = new int[MAX_BATCH];
+        private final ByteBuffer[] inflated = new ByteBuffer[MAX_BATCH]; // allocated the first time a run slot needs one
+        private final Inflater inflater = new Inflater(true);
+        private final Queue<byte[]> manifests = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer[] copied = new ByteBuffer[1]; // a block from the chunk store, as a run of one
+        private final List<ByteBuffer> parities = new ArrayList<>(); // this batch's, then the ones still waiting
+        private final ByteBuffer[] rebuilt = new ByteBuffer[1];
+        final AckState acks = new AckState(this);
+        private ByteBuffer sibling; // another chunk of a parity group, read back from the file
+        private int waitingParities = 0;
+        private MessageDigest blockDigest;
         private volatile boolean running = true;
+        private volatile boolean started = false; // false while still waiting for an executor thread
+        private volatile boolean suspended = false; // taken over by a resumed upload, stop without completing
+        private volatile boolean expired = false; // the client went quiet for the idle timeout, stop without completing
+        private volatile long lastPacketAt = System.nanoTime(); // set by the receive thread, from its loop's clock
+        private volatile String expectedDigest; // the client's SHA-256 of the file, from its END packet
+        private volatile long receivedPackets = 0; // only incremented by the receive thread that queues them
+        private volatile long duplicatePackets = 0;
+        private volatile long recoveredPackets = 0;
+        private volatile long behindSince = 0; // when the writer last had an empty queue behind it, 0 while it does
         private long totalBytes = 0;
+        private long unsyncedBytes = 0;
+        private long uncheckpointedBytes = 0;
+        private long lastSync = System.nanoTime();
+        private long lastCheckpoint = System.nanoTime();
 
-        ClientSession(DatagramSocket socket, ClientKey key, File file) {
-            this.socket = socket;
+        ClientSession(ReceiveShard owner, SocketAddress address, ClientKey key, Transfer transfer, boolean main) {
+            this.owner = owner;
+            this.address = address;
             this.key = key;
-            this.file = file;
+            this.transfer = transfer;
+            this.main = main;
+            this.queue = new ArrayBlockingQueue<>(owner.config.sessionQueue());
+            this.durability = owner.config.durability();
         }
 
         @Override
         public void run() {
-            try (FileOutputStream fos = new FileOutputStream(file)) {
-                while (running || !queue.isEmpty()) {
-                    byte[] data = queue.poll(1, TimeUnit.SECONDS);
-                    if (data != null) {
-                        fos.write(data);
-                        totalBytes += data.length;
+            started = true;
+            boolean completed = false;
+            boolean verified = false;
+            CheckpointStore checkpoints = owner.config.checkpoints();
+            ServerMetrics metrics = owner.config.metrics();
+            String mbeanName = "Assignment2svr:type=Session,client=" + ObjectName.quote(key.toString());
+            registerMBean(this, SessionMBean.class, mbeanName);
+            metrics.sessions.add(this);
+            try {
+                transfer.prepare(checkpoints);
+                // Readable too, a verified upload may need to read back data it wrote ahead of the part it has hashed
+                try (FileChannel out = FileChannel.open(transfer.part.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    boolean endOfStream = false;
+                    while (!endOfStream) {
+                        ByteBuffer first = queue.poll(IDLE_WAIT_MS, TimeUnit.MILLISECONDS);
+                        applyManifests(out);
+                        if (first == null) {
+                            if (!running) break; // close() couldn't queue END_OF_STREAM, but we are drained
+                            syncIfDue(out);
+                            continue;
+                        }
+                        batch.add(first);
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                        endOfStream = removeSentinels();
+                        long batchStart = System.nanoTime();
+                        writeBatch(out);
+                        metrics.writeLatency.record(System.nanoTime() - batchStart);
+                        syncIfDue(out);
+                        behindSince = queue.isEmpty() ? 0 : behindSince != 0 ? behindSince : batchStart;
                     }
+                    if (main) {
+                        // Nothing is finished until every stream's data is on disk
+                        transfer.closeStreams(this);
+                        if (suspended || expired) {
+                            checkpoint(out);
+                        } else {
+                            if (durability.mode() != Durability.Mode.NONE) out.force(false);
+                            String digest = transfer.finishDigest(out);
+                            verified = expectedDigest == null || expectedDigest.equalsIgnoreCase(digest);
+                            completed = true;
+                        }
+                    }
+                }
+                // Only a good file gets its name. One that failed verification is no use to anyone, and can't
+                // be resumed either, the bitmap doesn't say which chunks are bad
+                if (completed && verified) {
+                    transfer.commit(durability.mode() != Durability.Mode.NONE);
+                } else if (completed || main && expired && transfer.id == null) {
+                    // Nobody can come back for a partial file without a transfer id
+                    Files.deleteIfExists(transfer.part.toPath());
+                    owner.config.names().release(transfer.file);
                 }
-                fos.flush();
-            } catch (IOException | InterruptedException e) {
+                if (completed && transfer.id != null) checkpoints.remove(transfer.id);
+                // Its blocks can be copied from here for later uploads
+                if (completed && verified && transfer.dedup) owner.config.chunkIndex().addAll(transfer.file, transfer.blockSize, transfer.size, transfer.blockHashes);
+            } catch (IOException | InterruptedException | RuntimeException e) {
                 System.err.printf("Error in session %s: %s%n", key, e.getMessage());
+            } finally {
+                for (ByteBuffer packet : batch) release(packet);
+                batch.clear();
+                inflater.end();
+                ByteBuffer leftover;
+                while ((leftover = queue.poll()) != null) release(leftover);
+                owner.sessions.remove(key, this);
+                if (main) checkpoints.deactivate(transfer);
+                metrics.sessions.remove(this);
+                unregisterMBean(mbeanName);
+                if (main && (!completed || !verified) && !suspended && !expired) metrics.failed.increment();
+                if (main && completed && verified) metrics.completed.increment();
+                finished.countDown();
+            }
+
+            if (main && suspended) {
+                System.out.printf("Handed over transfer from %s to its resumed upload (%d bytes)%n", key, transfer.writtenBytes());
+            } else if (main && expired) {
+                System.err.printf("Expired transfer from %s after %dms without a packet: %s%n", key,
+                        TimeUnit.NANOSECONDS.toMillis(owner.config.idleNanos()), transfer.id != null
+                                ? "checkpointed " + transfer.checkpointedBytes + " bytes for a resume"
+                                : "deleted partial file '" + transfer.file.getName() + "'");
+            } else if (completed && !verified) {
+                System.err.printf("Transfer from %s failed verification: '%s' does not match the client's SHA-256, deleted it%n",
+                        key, transfer.file.getName());
+                owner.failedKeys.put(key, true);
+                try {
+                    sendNack(owner.channel, address, key, Protocol.OP_END, Protocol.CONTROL_SEQ);
+                } catch (IOException e) {
+                    System.err.printf("Could not NACK end of transfer to %s: %s%n", key, e.getMessage());
+                }
+            } else if (completed) {
+                System.out.printf("Completed transfer from %s (%d bytes%s%s%s)%n", key, transfer.writtenBytes(),
+                        transfer.streamCount() > 1 ? " over " + transfer.streamCount() + " streams" : "",
+                        transfer.copiedBytes > 0 ? ", " + transfer.copiedBytes + " of them from the chunk store" : "",
+                        expectedDigest != null ? ", SHA-256 verified" : "");
+                try {
+                    sendAck(owner.channel, address, key, Protocol.OP_END, Protocol.CONTROL_SEQ);
+                } catch (IOException e) {
+                    System.err.printf("Could not ACK end of transfer to %s: %s%n", key, e.getMessage());
+                }
+            }
+        }
+
+        // Sorts the batch by offset, skips anything already on disk, and writes each adjacent run at once
+        private void writeBatch(FileChannel out) throws IOException {
+            batch.sort(BY_OFFSET);
+            int runLength = 0;
+            long runStart = 0;
+            long runEnd = 0;
+            long lastOffset = -1;
+            for (ByteBuffer packet : batch) {
+                if (packet.get(Protocol.OPCODE_AT) == Protocol.OP_PARITY) {
+                    // Parity needs the data around it written first
+                    if (transfer.fec) parities.add(copyParity(packet));
+                    continue;
+                }
+                long offset = packet.getLong(Protocol.OFFSET_AT);
+                // A retransmit whose ACK was lost: already on disk, or right next to its twin in this batch
+                if (offset == lastOffset || transfer.isWritten(offset)) {
+                    duplicatePackets++;
+                    owner.config.metrics().duplicates.increment();
+                    continue;
+                }
+                lastOffset = offset;
+
+                if (runLength > 0 && offset != runEnd) {
+                    writeRun(out, runStart, runLength);
+                    runLength = 0;
+                }
+                ByteBuffer data = packet;
+                if (transfer.compress && (packet.get(Protocol.FLAGS_AT) & Protocol.BLOCK_DEFLATED) != 0 && (data = inflate(packet, runLength)) == null) {
+                    continue;
+                }
+                if (runLength == 0) runStart = offset;
+                run[runLength++] = data;
+                runEnd = offset + data.remaining();
+            }
+            if (runLength > 0) writeRun(out, runStart, runLength);
+
+            for (ByteBuffer packet : batch) release(packet);
+            batch.clear();
+            if (!parities.isEmpty()) applyParities(out);
+        }
+
+        // The pooled buffer goes back to its shard with the batch, a parity that has to wait can't hold on to it.
+        // Only what recover() needs is kept: the sequence number, first offset, packet count and the parity
+        private ByteBuffer copyParity(ByteBuffer packet) {
+            ByteBuffer copy = ByteBuffer.allocate(12 + packet.remaining());
+            copy.putInt(packet.getInt(Protocol.SEQ_AT)).putLong(packet.getLong(Protocol.OFFSET_AT)).put(packet.duplicate()).flip();
+            return copy;
+        }
+
+        // Newest first, each is a sequence number, the group's first offset and packet count, then the parity.
+        // Done with once its group is complete, by rebuilding or otherwise
+        private void applyParities(FileChannel out) throws IOException {
+            int kept = 0;
+            for (int i = parities.size() - 1; i >= 0; i--) {
+                ByteBuffer parity = parities.get(i);
+                if (!recover(out, parity) && kept++ < MAX_WAITING_PARITIES) continue;
+                parities.remove(i);
+            }
+            waitingParities = parities.size();
+        }
+
+        // True when the parity is no use any more: its group is whole, or the packet doesn't describe one
+        private boolean recover(FileChannel out, ByteBuffer parity) throws IOException {
+            long payloadSize = transfer.payloadSize;
+            long firstOffset = parity.getLong(4);
+            int count = parity.getInt(12);
+            int start = 12 + Protocol.PARITY_DESCRIPTOR;
+            if (count < 2 || count > Protocol.MAX_PARITY_GROUP || firstOffset < 0 || firstOffset % payloadSize != 0
+                    || firstOffset + (count - 1) * payloadSize >= transfer.size || parity.limit() - start != payloadSize) {
+                return true;
+            }
+            int missing = -1;
+            for (int i = 0; i < count; i++) {
+                if (transfer.isWritten(firstOffset + i * payloadSize)) continue;
+                if (missing >= 0) return false; // two or more, XOR parity can't help (yet)
+                missing = i;
+            }
+            if (missing < 0) return true;
+
+            // The missing chunk is the parity XORed with every other chunk of the group
+            if (rebuilt[0] == null) {
+                rebuilt[0] = ByteBuffer.allocateDirect(transfer.payloadSize);
+                sibling = ByteBuffer.allocateDirect(transfer.payloadSize);
+            }
+            ByteBuffer data = rebuilt[0].clear();
+            data.put(parity.duplicate().position(start)).flip();
+            for (int i = 0; i < count; i++) {
+                if (i == missing) continue;
+                long offset = firstOffset + i * payloadSize;
+                sibling.clear().limit((int) Math.min(payloadSize, transfer.size - offset));
+                while (sibling.hasRemaining()) {
+                    if (out.read(sibling, offset + sibling.position()) < 0) throw new EOFException("File shorter than its written chunks");
+                }
+                int length = sibling.flip().remaining();
+                int j = 0;
+                for (; j + 8 <= length; j += 8) data.putLong(j, data.getLong(j) ^ sibling.getLong(j));
+                for (; j < length; j++) data.put(j, (byte) (data.get(j) ^ sibling.get(j)));
+            }
+            long offset = firstOffset + missing * payloadSize;
+            long end = Math.min(transfer.size, offset + payloadSize);
+            data.limit((int) (end - offset));
+            while (data.hasRemaining()) {
+                out.write(data, offset + data.position());
+            }
+            data.rewind();
+            transfer.markWritten(out, rebuilt, 1, offset, end);
+            owner.config.metrics().recovered.increment();
+            owner.config.metrics().written.add(end - offset);
+            recoveredPackets++;
+            totalBytes += end - offset;
+            unsyncedBytes += end - offset;
+            uncheckpointedBytes += end - offset;
+            // Later ACKs count it as arrived, so the cumulative point can move past it
+            acks.record(parity.getInt(0) + missing);
+            sendReply(owner.channel, address, key, Protocol.OP_RECOVERED, Protocol.OP_DATA, parity.getInt(0) + missing);
+            return true;
+        }
+
+        // One gathering write for buffers that sit back to back in the file. The chunks only count as
+        // written (and go into checkpoints) once the write has returned
+        private void writeRun(FileChannel out, long offset, int count) throws IOException {
+            long length = 0;
+            for (int i = 0; i < count; i++) {
+                runPositions[i] = run[i].position();
+                length += run[i].remaining();
+            }
+            out.position(offset);
+            while (run[count - 1].hasRemaining()) {
+                out.write(run, 0, count);
+            }
+            // Rewound, so the transfer can hash the data straight out of the buffers
+            for (int i = 0; i < count; i++) run[i].position(runPositions[i]);
+            transfer.markWritten(out, run, count, offset, offset + length);
+            Arrays.fill(run, 0, count, null);
+            owner.config.metrics().written.add(length);
+            totalBytes += length;
+            unsyncedBytes += length;
+            uncheckpointedBytes += length;
+        }
+
+        // Inflates a deflated chunk into this run slot's buffer. A chunk that won't inflate (only possible
+        // without integrity checks) is left out, it was ACKed already so all we can do is say so
+        private ByteBuffer inflate(ByteBuffer packet, int slot) {
+            if (inflated[slot] == null) inflated[slot] = ByteBuffer.allocateDirect(transfer.payloadSize);
+            ByteBuffer target = inflated[slot].clear();
+            inflater.reset();
+            inflater.setInput(packet);
+            try {
+                inflater.inflate(target);
+                if (!inflater.finished()) throw new DataFormatException("inflates to more than one chunk");
+            } catch (DataFormatException e) {
+                System.err.printf("Dropped a corrupt compressed chunk at offset %d from %s: %s%n", packet.getLong(Protocol.OFFSET_AT), key, e.getMessage());
+                return null;
+            }
+            return target.flip();
+        }
+
+        // Takes END_OF_STREAM and WAKE_UP out of the batch, and says whether END_OF_STREAM was there.
+        // By identity, ByteBuffer.equals would compare contents
+        private boolean removeSentinels() {
+            boolean endOfStream = false;
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                ByteBuffer packet = batch.get(i);
+                if (packet == END_OF_STREAM || packet == WAKE_UP) {
+                    endOfStream |= packet == END_OF_STREAM;
+                    batch.remove(i);
+                }
+            }
+            return endOfStream;
+        }
+
+        // Each manifest is a first block index, a count and that many block hashes
+        private void applyManifests(FileChannel out) throws IOException {
+            byte[] manifest;
+            while ((manifest = manifests.poll()) != null) {
+                ByteBuffer hashes = ByteBuffer.wrap(manifest);
+                int firstBlock = hashes.getInt();
+                int count = Math.min(Math.min(hashes.getInt(), Protocol.MAX_MANIFEST_BLOCKS), hashes.remaining() / Protocol.HASH_SIZE);
+                long known = 0;
+                for (int i = 0; i < count; i++) {
+                    byte[] hash = new byte[Protocol.HASH_SIZE];
+                    hashes.get(hash);
+                    if (transfer.recordBlock(firstBlock + i, hash) && haveBlock(out, firstBlock + i, hash)) known |= 1L << i;
+                }
+                sendManifestAck(owner.channel, address, key, firstBlock, known);
+            }
+        }
+
+        // True when the whole block is in the file, because it already was or because we copied it from the
+        // chunk store. A partly written block is left for the client to finish, it skips duplicates anyway
+        private boolean haveBlock(FileChannel out, int block, byte[] hash) throws IOException {
+            long start = block * (long) transfer.blockSize;
+            long end = Math.min(transfer.size, start + transfer.blockSize);
+            if (transfer.allWritten(start, end)) return true;
+            if (transfer.anyWritten(start, end)) return false;
+
+            if (copied[0] == null) copied[0] = ByteBuffer.allocateDirect(transfer.blockSize);
+            if (blockDigest == null) blockDigest = Util.newSha256();
+            ByteBuffer data = copied[0].clear().limit((int) (end - start));
+            if (!owner.config.chunkIndex().read(hash, data, blockDigest)) return false;
+            while (data.hasRemaining()) {
+                out.write(data, start + data.position());
+            }
+            data.rewind();
+            transfer.markWritten(out, copied, 1, start, end);
+            transfer.copiedBytes += end - start;
+            owner.config.metrics().copied.add(end - start);
+            unsyncedBytes += end - start;
+            totalBytes += end - start;
+            return true;
+        }
+
+        private void syncIfDue(FileChannel out) throws IOException {
+            long now = System.nanoTime();
+            // The main stream checkpoints for the whole transfer, as soon as any stream has written something new
+            if (main && transfer.id != null && transfer.writtenBytes() > transfer.checkpointedBytes
+                    && now - lastCheckpoint >= owner.config.checkpoints().intervalNanos()) {
+                checkpoint(out);
+                return;
             }
+            if (durability.mode() != Durability.Mode.PERIODIC || unsyncedBytes == 0) return;
+            if (unsyncedBytes >= durability.syncBytes() || now - lastSync >= durability.syncNanos()) {
+                out.force(false);
+                unsyncedBytes = 0;
+                lastSync = now;
+            }
+        }
+
+        // The bitmap may only claim chunks that would survive a crash. Everything in the snapshot has
+        // been written, and forcing the file (any channel of it will do) then makes it durable
+        private void checkpoint(FileChannel out) throws IOException {
+            if (transfer.id == null) return;
+            long written = transfer.writtenBytes();
+            Checkpoint checkpoint = transfer.snapshot();
+            out.force(false);
+            owner.config.checkpoints().save(checkpoint);
+            transfer.checkpointedBytes = written;
+            unsyncedBytes = 0;
+            lastSync = lastCheckpoint = System.nanoTime();
+        }
+
+        private void release(ByteBuffer packet) {
+            if (packet != END_OF_STREAM && packet != WAKE_UP) owner.bufferPool.release(packet);
+        }
+
+        public void queueManifest(byte[] manifest) {
+            manifests.add(manifest);
+            queue.offer(WAKE_UP); // if the queue is full the writer is busy, and checks for manifests between batches
+        }
+
+        // False when the writer is too far behind to take another packet right now, or hasn't even
+        // started yet because a fixed executor is full. Either way we shouldn't be holding its data
+        public boolean queueData(ByteBuffer packet) {
+            return started && running && queue.offer(packet);
         }
 
-        public void queueData(byte[] data) {
-            queue.offer(data);
+        // The END packet from the client, with its digest of the file when it wants it verified
+        public void finish(String digest) {
+            expectedDigest = digest;
+            close();
         }
 
+        // If the queue is full the writer is busy anyway, and it notices `running` once it has drained
         public void close() {
             running = false;
+            queue.offer(END_OF_STREAM);
+        }
+
+        // A resumed upload of the same transfer is taking over, stop here and leave it a checkpoint
+        public void suspend() {
+            if (!running) return;
+            suspended = true;
+            close();
+        }
+
+        // Called by the owner shard once the upload has had no packets for the idle timeout
+        public void expire() {
+            if (!running) return;
+            expired = true;
+            close();
+        }
+
+        public boolean isClosing() {
+            return !running;
+        }
+
+        @Override
+        public String getFile() {
+            return transfer.file.getName();
+        }
+
+        @Override
+        public boolean isMainStream() {
+            return main;
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return queue.size();
+        }
+
+        @Override
+        public long getReceivedPackets() {
+            return receivedPackets;
+        }
+
+        @Override
+        public long getDuplicatePackets() {
+            return duplicatePackets;
+        }
+
+        @Override
+        public long getRecoveredPackets() {
+            return recoveredPackets;
+        }
+
+        @Override
+        public int getWaitingParities() {
+            return waitingParities;
+        }
+
+        @Override
+        public long getTransferWrittenBytes() {
+            return transfer.writtenBytes();
+        }
+
+        @Override
+        public long getWriterLagMillis() {
+            long since = behindSince;
+            return since == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+        }
+    }
+
+    /**
+     * One download, sent from a socket of its own (connected to the client) by the client's own sliding
+     * window sender, so downloads get the same congestion window, pacing, SACK fast retransmits and
+     * retransmission timers as uploads. The client is the receiver here, and ACKs and NACKs our data
+     * packets just like we do theirs. The data is sliced out of the shared block cache rather than read
+     * from the file, so a file many clients fetch at once is read from disk once. Nothing is sent until
+     * the client ACKs our GET ACK from its socket, otherwise our first packets could reach it before it
+     * has turned to our port and be refused. Once everything is ACKed we send an END, and only once
+     * the client ACKs that too is the download counted as complete.
+     */
+    static class DownloadSession implements Runnable {
+        private final ReceiveShard owner;
+        private final SocketAddress address;
+        private final ClientKey key;
+        private final File file;
+        private final long size;
+        private final int payloadSize;
+        private final boolean integrity;
+        private final DatagramChannel channel;
+        private final int port;
+
+        DownloadSession(ReceiveShard owner, SocketAddress address, ClientKey key, File file, int payloadSize, boolean integrity)
+                throws IOException {
+            this.owner = owner;
+            this.address = address;
+            this.key = key;
+            this.file = file;
+            this.size = file.length();
+            this.payloadSize = payloadSize;
+            this.integrity = integrity;
+            this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            channel.bind(new InetSocketAddress(0));
+            this.port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        }
+
+        @Override
+        public void run() {
+            ServerMetrics metrics = owner.config.metrics();
+            Assignment2cli.RttEstimator rtt = new Assignment2cli.RttEstimator(Assignment2cli.MIN_RTO_MS, Assignment2cli.MAX_RTO_MS,
+                    Assignment2cli.MAX_RETRIES);
+            Assignment2cli.TransferStats stats = new Assignment2cli.TransferStats(size);
+            boolean completed = false;
+            try (channel; BlockCache.Source source = owner.config.cache().open(file, payloadSize)) {
+                awaitClient((long) Assignment2cli.MAX_RTO_MS * (Assignment2cli.MAX_RETRIES + 1));
+                channel.connect(address);
+                Assignment2cli.Link link = new Assignment2cli.Link(channel);
+                Assignment2cli.sendWindowed(link, source, payloadSize, integrity, null, -1, 0, size, new long[0], rtt,
+                        new Assignment2cli.CongestionControl(Assignment2cli.DEFAULT_WINDOW), new Assignment2cli.Pacer(0), stats);
+                Assignment2cli.sendWithAck(link, Protocol.OP_END, new byte[0], "end of download", rtt);
+                completed = true;
+            } catch (IOException e) {
+                System.err.printf("Error in download to %s: %s%n", key, e.getMessage());
+            } finally {
+                owner.downloads.remove(key, this);
+            }
+            if (completed) {
+                metrics.downloads.increment();
+                metrics.downloadBytes.add(size);
+                System.out.printf("Completed download to %s ('%s', %d bytes, %d packets, %d retransmits)%n", key, file.getName(),
+                        size, stats.packets.sum(), stats.retransmits.sum());
+            }
+        }
+
+        // Waits for the client's ACK of our GET ACK, which it sends (and resends until our data comes) once it
+        // listens to this port. Anything else, or from anyone else, is ignored
+        private void awaitClient(long timeoutMs) throws IOException {
+            DatagramSocket socket = channel.socket();
+            ByteBuffer packet = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                DatagramPacket received = new DatagramPacket(packet.array(), packet.capacity());
+                try {
+                    socket.receive(received);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                packet.clear().limit(received.getLength());
+                if (address.equals(received.getSocketAddress()) && Protocol.isFrame(packet)
+                        && packet.get(Protocol.OPCODE_AT) == Protocol.OP_ACK && packet.get(Protocol.FLAGS_AT) == Protocol.OP_GET) {
+                    return;
+                }
+            }
+            throw new IOException("the client never turned to port " + port + " in " + timeoutMs + "ms");
+        }
+    }
+
+    /**
+     * One upload, possibly arriving over several streams (each its own client socket and session).
+     * Holds what the streams share: the output file and the bitmap of chunks that have been written.
+     * When it resumes an upload whose previous transfer is still running, the first of its sessions
+     * to start waits for that one to stop and picks up its checkpoint.
+     * With integrity on it also hashes the file as it is written. The hash can only take data in file
+     * order, so a run that continues the hashed prefix is hashed straight from the receive buffers,
+     * and anything written further ahead is read back from the file once the prefix reaches it.
+     * The file is written under a hidden temporary name next to its real one, created at its full size
+     * up front when the client told us the size, and only renamed to its real name (atomically, so
+     * nobody ever sees half a file there) once the upload is complete and verified.
+     */
+    static class Transfer {
+        static final String PART_SUFFIX = ".part";
+        private static final int CATCH_UP_BUFFER = 256 * 1024;
+        private final String id; // null for uploads that can't be resumed
+        private final String attempt; // the client run's own id, which its other streams join by, or null
+        private final long size;
+        private final int payloadSize; // negotiated in the handshake, every chunk but the last is this big
+        private final File file; // the name it gets once it is complete
+        private final File part; // where it is written until then
+        private final boolean integrity;
+        private final boolean compress;
+        private final int headerSize; // the fixed header, then the CRC when integrity is on
+        private final boolean dedup;
+        private final boolean fec;
+        private final int blockSize; // whole chunks, so a block is written when all its bits are set
+        private final byte[][] blockHashes; // from the client's manifest, only touched by the main session
+        private volatile long copiedBytes = 0; // written from the chunk store rather than received
+        private final Transfer previous; // an earlier transfer of this upload we take over from, or null
+        private final List<ClientSession> streams = new CopyOnWriteArrayList<>(); // the main stream comes first
+        private final BitSet received = new BitSet(); // bit i is set once the chunk at offset i * payloadSize is written
+        private long writtenBytes = 0;
+        private volatile long checkpointedBytes = 0; // only touched by the main session
+        private boolean prepared = false;
+        private final MessageDigest digest; // SHA-256 of the file up to digestedUpTo, null without integrity
+        private long digestedUpTo = 0;
+        private ByteBuffer catchUp;
+
+        Transfer(String id, String attempt, long size, int payloadSize, File file, boolean integrity, boolean compress, boolean dedup,
+                 boolean fec, Transfer previous) {
+            this.id = id;
+            this.attempt = attempt;
+            this.size = size;
+            this.payloadSize = payloadSize;
+            this.file = file;
+            this.part = partFile(file);
+            this.integrity = integrity;
+            this.compress = compress;
+            this.headerSize = Protocol.HEADER_SIZE + (integrity ? Protocol.CRC_SIZE : 0);
+            this.previous = previous;
+            this.digest = integrity ? Util.newSha256() : null;
+            this.dedup = dedup;
+            this.fec = fec;
+            this.blockSize = Math.max(1, Protocol.DEDUP_BLOCK / payloadSize) * payloadSize;
+            this.blockHashes = dedup ? new byte[(int) ((size + blockSize - 1) / blockSize)][] : null;
+        }
+
+        int flags() {
+            return (integrity ? Protocol.FLAG_INTEGRITY : 0) | (compress ? Protocol.FLAG_COMPRESS : 0) | (dedup ? Protocol.FLAG_DEDUP : 0) | (fec ? Protocol.FLAG_FEC : 0);
+        }
+
+        boolean recordBlock(int block, byte[] hash) {
+            if (block < 0 || block >= blockHashes.length) return false;
+            blockHashes[block] = hash;
+            return true;
+        }
+
+        static File partFile(File file) {
+            return new File(file.getParentFile(), "." + file.getName() + PART_SUFFIX);
+        }
+
+        // Runs once, before any stream writes: only a fresh upload starts from an empty file,
+        // a resumed one keeps what is already there. A fresh one of known size is made that long
+        // right away, so writes land inside the file instead of growing it a packet at a time
+        synchronized void prepare(CheckpointStore checkpoints) throws IOException, InterruptedException {
+            if (prepared) return;
+            if (previous != null) previous.main().finished.await();
+            Checkpoint checkpoint = id == null ? null : checkpoints.get(id);
+            if (checkpoint != null && checkpoint.file().equals(file)) received.or(checkpoint.received());
+            if (received.isEmpty()) {
+                try (RandomAccessFile out = new RandomAccessFile(part, "rw")) {
+                    out.setLength(0);
+                    if (size > 0) out.setLength(size);
+                }
+            }
+            prepared = true;
+        }
+
+        // Gives the finished file its real name. With a durability policy the directory is forced too,
+        // so the rename survives a crash as well as the data does
+        void commit(boolean force) throws IOException {
+            Files.move(part.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (!force) return;
+            try (FileChannel dir = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+                dir.force(true);
+            } catch (IOException e) {
+                // not every platform lets us open a directory, the rename is still atomic there
+            }
+        }
+
+        // Where a chunk starts: a whole number of payloads in, and before the end of the file when we know its size.
+        // Without one the bitmap still has to be able to index it
+        boolean isChunkOffset(long offset) {
+            return offset >= 0 && offset % payloadSize == 0 && (size >= 0 ? offset < size : offset / payloadSize < Integer.MAX_VALUE);
+        }
+
+        synchronized boolean isWritten(long offset) {
+            return received.get((int) (offset / payloadSize));
+        }
+
+        synchronized boolean allWritten(long start, long end) {
+            return received.nextClearBit((int) (start / payloadSize)) >= (end + payloadSize - 1) / payloadSize;
+        }
+
+        synchronized boolean anyWritten(long start, long end) {
+            int next = received.nextSetBit((int) (start / payloadSize));
+            return next >= 0 && next < (end + payloadSize - 1) / payloadSize;
+        }
+
+        // Called with the run of buffers that was just written there, their data still in them
+        synchronized void markWritten(FileChannel out, ByteBuffer[] run, int count, long start, long end) throws IOException {
+            received.set((int) (start / payloadSize), (int) ((end + payloadSize - 1) / payloadSize));
+            writtenBytes += end - start;
+            if (digest == null) return;
+            if (start == digestedUpTo) {
+                for (int i = 0; i < count; i++) digest.update(run[i]);
+                digestedUpTo = end;
+            }
+            catchUpDigest(out);
+        }
+
+        // Hashes whatever has been written right after the hashed prefix, reading it back from the file
+        // (normally still in the page cache)
+        private void catchUpDigest(FileChannel out) throws IOException {
+            while (digestedUpTo < size && received.get((int) (digestedUpTo / payloadSize))) {
+                long until = Math.min(size, received.nextClearBit((int) (digestedUpTo / payloadSize)) * (long) payloadSize);
+                if (catchUp == null) catchUp = ByteBuffer.allocateDirect(CATCH_UP_BUFFER);
+                while (digestedUpTo < until) {
+                    catchUp.clear().limit((int) Math.min(catchUp.capacity(), until - digestedUpTo));
+                    int n = out.read(catchUp, digestedUpTo);
+                    if (n < 0) throw new EOFException("File is shorter than what was written to it");
+                    digest.update(catchUp.flip());
+                    digestedUpTo += n;
+                }
+            }
+        }
+
+        // The hex SHA-256 of the whole file, or null when this upload isn't verified
+        synchronized String finishDigest(FileChannel out) throws IOException {
+            if (digest == null) return null;
+            catchUpDigest(out);
+            return HexFormat.of().formatHex(digest.digest());
+        }
+
+        synchronized long writtenBytes() {
+            return writtenBytes;
+        }
+
+        synchronized Checkpoint snapshot() {
+            return new Checkpoint(id, size, payloadSize, file, (BitSet) received.clone());
+        }
+
+        void addStream(ClientSession session) {
+            streams.add(session);
+        }
+
+        ClientSession main() {
+            return streams.get(0);
+        }
+
+        int streamCount() {
+            return streams.size();
+        }
+
+        // The session of this transfer that receives from the given client socket, if any
+        ClientSession stream(ClientKey key) {
+            for (ClientSession session : streams) {
+                if (session.key.equals(key)) return session;
+            }
+            return null;
+        }
+
+        boolean isClosing() {
+            return main().isClosing();
+        }
+
+        // When a packet last arrived on any of the streams
+        long lastPacketAt() {
+            long latest = Long.MIN_VALUE;
+            for (ClientSession session : streams) {
+                if (latest == Long.MIN_VALUE || session.lastPacketAt - latest > 0) latest = session.lastPacketAt;
+            }
+            return latest;
+        }
+
+        // The main stream stops the others once the client is done (or gone), and waits for their writers
+        void closeStreams(ClientSession main) throws InterruptedException {
+            for (ClientSession session : streams) {
+                if (session == main) continue;
+                session.close();
+                if (session.started) session.finished.await();
+            }
+        }
+    }
+
+    /**
+     * When the server forces written data to disk: never (leave it to the OS), once before the final
+     * ACK of each upload, or periodically during the upload (every syncBytes or syncNanos, whichever
+     * comes first) as well as before the final ACK.
+     */
+    static record Durability(Mode mode, long syncBytes, long syncNanos) {
+        enum Mode { NONE, END, PERIODIC }
+
+        static Durability parse(Map<String, String> options) {
+            Mode mode = Mode.valueOf(options.getOrDefault("fsync", "none").toUpperCase());
+            long syncBytes = Util.parseBytes(options.getOrDefault("fsync-bytes", "64M"));
+            long syncMs = Long.parseLong(options.getOrDefault("fsync-ms", "1000"));
+            return new Durability(mode, syncBytes, TimeUnit.MILLISECONDS.toNanos(syncMs));
+        }
+    }
+
+    /**
+     * Settings shared by every receive shard, from the command line
+     */
+    static record ServerConfig(boolean reusePort, int buffersPerShard, int sessionQueue, Durability durability,
+                                       CheckpointStore checkpoints, ChunkIndex chunkIndex, OutputNames names, BlockCache cache,
+                                       ServerMetrics metrics,
+                                       int ackEvery, long ackDelayNanos, long idleNanos, long takeoverNanos) {
+    }
+
+    /**
+     * What JMX shows of a running session (one stream of an upload). The writer lag is how long its
+     * writer has been unable to empty its queue, 0 while it keeps up.
+     */
+    public interface SessionMBean {
+        String getFile();
+        boolean isMainStream();
+        int getQueueDepth();
+        long getReceivedPackets();
+        long getDuplicatePackets();
+        long getRecoveredPackets();
+        int getWaitingParities();
+        long getTransferWrittenBytes();
+        long getWriterLagMillis();
+    }
+
+    /**
+     * Server-wide counters, as JMX shows them. Rates are averaged over the last stats interval.
+     */
+    public interface ServerMetricsMBean {
+        long getPacketsReceived();
+        long getBytesReceived();
+        long getPacketsDropped();
+        long getMalformedPackets();
+        long getDuplicatePackets();
+        long getNacksSent();
+        long getAcksSent();
+        long getPacketsRecovered();
+        long getBytesWritten();
+        long getBytesFromChunkStore();
+        int getActiveSessions();
+        long getTransfersCompleted();
+        long getTransfersFailed();
+        long getTransfersExpired();
+        long getDownloadsCompleted();
+        long getBytesDownloaded();
+        long getCacheHits();
+        long getCacheMisses();
+        double getCacheHitRatio();
+        long getCacheEvictions();
+        long getCacheBytes();
+        double getPacketsPerSecond();
+        double getBytesPerSecond();
+        int getMaxQueueDepth();
+        long getMaxWriterLagMillis();
+        double getWriteLatencyP50Millis();
+        double getWriteLatencyP99Millis();
+    }
+
+    /**
+     * Counters bumped on the receive loops and session writers. They are LongAdders, so the hot paths
+     * never contend over a shared cache line, and only get summed when someone looks. Queue depths and
+     * writer lag are read off the running sessions. Every stats interval a one-line summary is printed,
+     * as long as packets came in since the last one.
+     */
+    static class ServerMetrics implements ServerMetricsMBean {
+        final LongAdder packets = new LongAdder(); // data packets queued for a writer (and so ACKed, sooner or later)
+        final LongAdder bytes = new LongAdder();
+        final LongAdder dropped = new LongAdder(); // no buffer or a full queue, left for the client to resend
+        final LongAdder malformed = new LongAdder(); // not our header, or an opcode we don't know
+        final LongAdder duplicates = new LongAdder(); // retransmits of chunks that were already written
+        final LongAdder nacks = new LongAdder();
+        final LongAdder acks = new LongAdder(); // data ACKs sent, each covers every data packet that arrived before it
+        final LongAdder recovered = new LongAdder(); // lost packets rebuilt from parity
+        final LongAdder written = new LongAdder();
+        final LongAdder copied = new LongAdder();
+        final LongAdder completed = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder expired = new LongAdder(); // uploads whose client went quiet for the idle timeout
+        final LongAdder downloads = new LongAdder(); // completed: every byte ACKed by the client
+        final LongAdder downloadBytes = new LongAdder();
+        final LongAdder cacheHits = new LongAdder(); // block lookups, not packets: a download looks up each block once
+        final LongAdder cacheMisses = new LongAdder();
+        final LongAdder cacheEvictions = new LongAdder();
+        volatile BlockCache cache; // for its memory use, set once it is created
+        final Set<ClientSession> sessions = ConcurrentHashMap.newKeySet();
+        final Util.Histogram writeLatency = new Util.Histogram(); // one writer batch, from drained queue to written
+        private volatile double packetRate = 0;
+        private volatile double byteRate = 0;
+        private long lastPackets = 0;
+        private long lastBytes = 0;
+        private long lastLookups = 0;
+        private long lastDump = System.nanoTime();
+
+        void startDumping(long intervalMs) {
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "stats");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.scheduleAtFixedRate(this::dump, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void dump() {
+            long now = System.nanoTime();
+            long packetCount = packets.sum();
+            long byteCount = bytes.sum();
+            double seconds = (now - lastDump) / 1e9;
+            long newPackets = packetCount - lastPackets;
+            packetRate = newPackets / seconds;
+            byteRate = (byteCount - lastBytes) / seconds;
+            lastPackets = packetCount;
+            lastBytes = byteCount;
+            lastDump = now;
+            long lookups = cacheHits.sum() + cacheMisses.sum();
+            long newLookups = lookups - lastLookups;
+            lastLookups = lookups;
+            if (newPackets == 0 && newLookups == 0) return;
+            System.out.printf("[stats] %d session(s), %.0f pkt/s, %.2f MB/s, acks %d, dropped %d, dup %d, nack %d, fec %d, queue max %d,"
+                            + " lag max %dms, write p50 %.2fms p99 %.2fms, downloads %d, cache hit %.1f%% %.1fMB%n",
+                    sessions.size(), packetRate, byteRate / (1024 * 1024), acks.sum(), dropped.sum(), duplicates.sum(), nacks.sum(), recovered.sum(),
+                    getMaxQueueDepth(), getMaxWriterLagMillis(), getWriteLatencyP50Millis(), getWriteLatencyP99Millis(),
+                    downloads.sum(), 100 * getCacheHitRatio(), getCacheBytes() / (1024.0 * 1024));
+        }
+
+        @Override
+        public long getPacketsReceived() {
+            return packets.sum();
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return bytes.sum();
+        }
+
+        @Override
+        public long getPacketsDropped() {
+            return dropped.sum();
+        }
+
+        @Override
+        public long getMalformedPackets() {
+            return malformed.sum();
+        }
+
+        @Override
+        public long getDuplicatePackets() {
+            return duplicates.sum();
+        }
+
+        @Override
+        public long getNacksSent() {
+            return nacks.sum();
+        }
+
+        @Override
+        public long getAcksSent() {
+            return acks.sum();
+        }
+
+        @Override
+        public long getPacketsRecovered() {
+            return recovered.sum();
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return written.sum();
+        }
+
+        @Override
+        public long getBytesFromChunkStore() {
+            return copied.sum();
+        }
+
+        @Override
+        public int getActiveSessions() {
+            return sessions.size();
+        }
+
+        @Override
+        public long getTransfersCompleted() {
+            return completed.sum();
+        }
+
+        @Override
+        public long getTransfersFailed() {
+            return failed.sum();
+        }
+
+        @Override
+        public long getTransfersExpired() {
+            return expired.sum();
+        }
+
+        @Override
+        public long getDownloadsCompleted() {
+            return downloads.sum();
+        }
+
+        @Override
+        public long getBytesDownloaded() {
+            return downloadBytes.sum();
+        }
+
+        @Override
+        public long getCacheHits() {
+            return cacheHits.sum();
+        }
+
+        @Override
+        public long getCacheMisses() {
+            return cacheMisses.sum();
+        }
+
+        @Override
+        public double getCacheHitRatio() {
+            long hits = cacheHits.sum();
+            long lookups = hits + cacheMisses.sum();
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public long getCacheEvictions() {
+            return cacheEvictions.sum();
+        }
+
+        @Override
+        public long getCacheBytes() {
+            BlockCache current = cache;
+            return current == null ? 0 : current.bytes();
+        }
+
+        @Override
+        public double getPacketsPerSecond() {
+            return packetRate;
+        }
+
+        @Override
+        public double getBytesPerSecond() {
+            return byteRate;
+        }
+
+        @Override
+        public double getWriteLatencyP50Millis() {
+            return writeLatency.percentile(0.50) / 1e6;
+        }
+
+        @Override
+        public double getWriteLatencyP99Millis() {
+            return writeLatency.percentile(0.99) / 1e6;
+        }
+
+        @Override
+        public int getMaxQueueDepth() {
+            int max = 0;
+            for (ClientSession session : sessions) max = Math.max(max, session.getQueueDepth());
+            return max;
+        }
+
+        @Override
+        public long getMaxWriterLagMillis() {
+            long max = 0;
+            for (ClientSession session : sessions) max = Math.max(max, session.getWriterLagMillis());
+            return max;
+        }
+    }
+
+
+    /**
+     * Where every block of past deduplicated uploads can be found: its SHA-256, mapped to a file, offset
+     * and length. Kept in memory and appended to a log file, which is read back at startup.
+     * Nothing stops those files changing or going away later, so every block is hashed again when it
+     * is read, and one that no longer matches is forgotten (a tombstone record in the log).
+     */
+    static class ChunkIndex {
+        private record Location(File file, long offset, int length) { }
+
+        private final Map<String, Location> blocks = new HashMap<>(); // by hex hash, guarded by this
+        private final DataOutputStream log;
+
+        ChunkIndex(File logFile) throws IOException {
+            long valid = 0;
+            if (logFile.isFile()) {
+                Map<String, Boolean> exists = new HashMap<>();
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+                    while (true) {
+                        byte[] hash = new byte[Protocol.HASH_SIZE];
+                        in.readFully(hash);
+                        int length = in.readInt();
+                        long offset = in.readLong();
+                        String path = in.readUTF();
+                        valid += Protocol.HASH_SIZE + 4 + 8 + 2 + path.getBytes(StandardCharsets.UTF_8).length;
+                        String key = HexFormat.of().formatHex(hash);
+                        if (length < 0) {
+                            blocks.remove(key);
+                        } else if (exists.computeIfAbsent(path, p -> new File(p).isFile())) {
+                            blocks.put(key, new Location(new File(path), offset, length));
+                        }
+                    }
+                } catch (EOFException e) {
+                    // end of the log, or a record cut short by a crash, which the truncate below drops
+                }
+                try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+                    raf.setLength(valid);
+                }
+                if (!blocks.isEmpty()) System.out.println("Chunk index knows " + blocks.size() + " block(s)");
+            }
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+        }
+
+        // Remembers every block of a completed upload (blocks we have no hash for are skipped)
+        synchronized void addAll(File file, int blockSize, long size, byte[][] hashes) throws IOException {
+            for (int i = 0; i < hashes.length; i++) {
+                if (hashes[i] == null) continue;
+                long offset = i * (long) blockSize;
+                int length = (int) Math.min(blockSize, size - offset);
+                append(hashes[i], length, offset, file.getPath());
+                blocks.put(HexFormat.of().formatHex(hashes[i]), new Location(file, offset, length));
+            }
+            log.flush();
+        }
+
+        /**
+         * Fills target (up to its limit) with the block that has this hash, if we know one of that length
+         * and it still hashes the same. Leaves target flipped and returns true when it did.
+         */
+        boolean read(byte[] hash, ByteBuffer target, MessageDigest digest) {
+            Location location = find(hash);
+            if (location == null || location.length() != target.remaining()) return false;
+            try (FileChannel in = FileChannel.open(location.file().toPath(), StandardOpenOption.READ)) {
+                while (target.hasRemaining()) {
+                    if (in.read(target, location.offset() + target.position()) < 0) throw new EOFException("File got shorter");
+                }
+                digest.reset();
+                digest.update(target.flip());
+                if (MessageDigest.isEqual(digest.digest(), hash)) {
+                    target.rewind();
+                    return true;
+                }
+            } catch (IOException e) {
+                // gone or unreadable, as good as changed
+            }
+            forget(hash, location);
+            return false;
+        }
+
+        private synchronized Location find(byte[] hash) {
+            return blocks.get(HexFormat.of().formatHex(hash));
+        }
+
+        private synchronized void forget(byte[] hash, Location location) {
+            if (!blocks.remove(HexFormat.of().formatHex(hash), location)) return;
+            try {
+                append(hash, -1, 0, "");
+                log.flush();
+            } catch (IOException e) {
+                System.err.println("Could not update the chunk index: " + e.getMessage());
+            }
+        }
+
+        private void append(byte[] hash, int length, long offset, String path) throws IOException {
+            log.write(hash);
+            log.writeInt(length);
+            log.writeLong(offset);
+            log.writeUTF(path);
+        }
+    }
+
+    /**
+     * What we have of one resumable upload: chunk i (payloadSize bytes at offset i * payloadSize) is
+     * safely in the output file when its bit is set. Saved as a small binary file named after the id.
+     */
+    private static record Checkpoint(String id, long size, int payloadSize, File file, BitSet received) {
+        static Checkpoint read(File source) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(source)))) {
+                String id = in.readUTF();
+                long size = in.readLong();
+                int payloadSize = in.readInt();
+                File file = new File(in.readUTF());
+                byte[] bits = new byte[in.readInt()];
+                in.readFully(bits);
+                return new Checkpoint(id, size, payloadSize, file, BitSet.valueOf(bits));
+            }
+        }
+
+        void write(FileOutputStream target) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(target));
+            out.writeUTF(id);
+            out.writeLong(size);
+            out.writeInt(payloadSize);
+            out.writeUTF(file.getPath());
+            byte[] bits = received.toByteArray();
+            out.writeInt(bits.length);
+            out.write(bits);
+            out.flush();
+        }
+
+        // Received chunks as a count and start/end byte pairs, as many as fit in the ACK (leaving reserve
+        // bytes for what comes after). Any we leave out just get sent again and skipped as duplicates
+        void putRanges(ByteBuffer ack, int reserve) {
+            int countAt = ack.position();
+            ack.putInt(0);
+            int count = 0;
+            for (int i = received.nextSetBit(0); i >= 0 && ack.remaining() >= 16 + reserve; i = received.nextSetBit(i)) {
+                long start = i * (long) payloadSize;
+                i = received.nextClearBit(i);
+                ack.putLong(start).putLong(Math.min(size, i * (long) payloadSize));
+                count++;
+            }
+            ack.putInt(countAt, count);
+        }
+    }
+
+    /**
+     * Recently read blocks of downloaded files, shared by every download, so a hot file that many clients
+     * fetch at once is read from disk once rather than once per client. Bounded in bytes: when a new
+     * block takes it over capacity, the least recently used blocks are evicted. A block is the whole
+     * packets that fit in CACHE_BLOCK, so no packet straddles two (downloads with another payload size
+     * get blocks of their own). A miss is read with positional FileChannel reads into a direct buffer,
+     * outside the lock, and downloads that miss the same block at once wait for that one read.
+     * Blocks are keyed by the file's size and modification time as well as its path, so a file that
+     * changes is never served from its old blocks, they just age out.
+     * A download keeps using the block it is on even once it is evicted, so memory use can briefly go
+     * over capacity by a block per running download.
+     */
+    static class BlockCache {
+        private record Key(String path, long length, long modified, int blockSize, long index) {
+            int bytes() {
+                return (int) Math.min(blockSize, length - index * blockSize);
+            }
+        }
+
+        private final long capacity;
+        private final ServerMetrics metrics;
+        private final LinkedHashMap<Key, FutureTask<ByteBuffer>> blocks = new LinkedHashMap<>(16, 0.75f, true); // in access order
+        private long bytes = 0;
+
+        BlockCache(long capacity, ServerMetrics metrics) {
+            this.capacity = capacity;
+            this.metrics = metrics;
+            metrics.cache = this;
+        }
+
+        Source open(File file, int payloadSize) throws IOException {
+            return new Source(file, Math.max(1, CACHE_BLOCK / payloadSize) * payloadSize);
+        }
+
+        private ByteBuffer get(Key key, FileChannel in) throws IOException {
+            FutureTask<ByteBuffer> block;
+            boolean miss = false;
+            synchronized (this) {
+                block = blocks.get(key);
+                if (block == null) {
+                    block = new FutureTask<>(() -> read(in, key));
+                    blocks.put(key, block);
+                    bytes += key.bytes();
+                    miss = true;
+                    // The eldest first, never the block we just added
+                    Iterator<Map.Entry<Key, FutureTask<ByteBuffer>>> eldest = blocks.entrySet().iterator();
+                    while (bytes > capacity && blocks.size() > 1) {
+                        bytes -= eldest.next().getKey().bytes();
+                        eldest.remove();
+                        metrics.cacheEvictions.increment();
+                    }
+                }
+            }
+            if (miss) {
+                metrics.cacheMisses.increment();
+                block.run();
+            } else {
+                metrics.cacheHits.increment();
+            }
+            try {
+                return block.get();
+            } catch (ExecutionException e) {
+                // Not cached, the next download to want it tries again
+                synchronized (this) {
+                    if (blocks.remove(key, block)) bytes -= key.bytes();
+                }
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a cached block");
+            }
+        }
+
+        private static ByteBuffer read(FileChannel in, Key key) throws IOException {
+            ByteBuffer block = ByteBuffer.allocateDirect(key.bytes());
+            long start = key.index() * key.blockSize();
+            while (block.hasRemaining()) {
+                if (in.read(block, start + block.position()) < 0) throw new EOFException("File shrank while reading it");
+            }
+            return block.flip();
+        }
+
+        synchronized long bytes() {
+            return bytes;
+        }
+
+        /**
+         * One download's view of a file through the cache. It holds on to the block it is sending from,
+         * and only goes back to the cache when a packet is in another one.
+         */
+        class Source implements Assignment2cli.ChunkSource, Closeable {
+            private final FileChannel in;
+            private final String path;
+            private final long length;
+            private final long modified;
+            private final int blockSize;
+            private long index = -1;
+            private ByteBuffer view;
+
+            private Source(File file, int blockSize) throws IOException {
+                this.in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                this.path = file.getCanonicalPath();
+                this.length = in.size();
+                this.modified = file.lastModified();
+                this.blockSize = blockSize;
+            }
+
+            @Override
+            public ByteBuffer slice(long offset, int size) throws IOException {
+                long block = offset / blockSize;
+                if (block != index) {
+                    view = get(new Key(path, length, modified, blockSize, block), in).duplicate();
+                    index = block;
+                }
+                int start = (int) (offset - block * blockSize);
+                view.clear();
+                view.position(start).limit(start + size);
+                return view;
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Which output file names are taken, so every new upload gets a name of its own without probing the
+     * disk: the first upload of example.txt gets that name, later ones example(1).txt, example(2).txt...
+     * The working directory (where uploads are saved) is listed once at startup. A partial file also
+     * holds on to the name it will be renamed to, so an interrupted upload can still be resumed into it.
+     * From then on only the index is asked, and it is the only thing that hands out names, so two
+     * uploads of the same name at once can never get the same file. Each base name remembers the next
+     * copy number to try, so the thousandth upload of one name doesn't walk past the other 999.
+     * Files created in the directory behind the server's back after startup aren't seen.
+     */
+    static class OutputNames {
+        private final Set<String> taken = new HashSet<>();
+        private final Map<String, Integer> nextCopy = new HashMap<>();
+
+        OutputNames() {
+            String[] existing = new File(".").list();
+            for (String name : existing == null ? new String[0] : existing) {
+                taken.add(name);
+                if (name.startsWith(".") && name.endsWith(Transfer.PART_SUFFIX) && name.length() > 1 + Transfer.PART_SUFFIX.length()) {
+                    taken.add(name.substring(1, name.length() - Transfer.PART_SUFFIX.length()));
+                }
+            }
+        }
+
+        synchronized File reserve(String baseName) {
+            if (taken.add(baseName)) return new File(baseName);
+
+            String name = baseName;
+            String ext = "";
+            int dotIndex = baseName.lastIndexOf('.');
+            if (dotIndex != -1) {
+                name = baseName.substring(0, dotIndex);
+                ext = baseName.substring(dotIndex);
+            }
+
+            int count = nextCopy.getOrDefault(baseName, 1);
+            String candidate;
+            do {
+                candidate = name + "(" + count++ + ")" + ext;
+            } while (!taken.add(candidate));
+            nextCopy.put(baseName, count);
+            return new File(candidate);
+        }
+
+        // The upload that had it was given up on and its partial file deleted
+        synchronized void release(File file) {
+            taken.remove(file.getPath());
+        }
+    }
+
+    /**
+     * The checkpoint directory, plus which transfer is currently receiving each transfer id (and which
+     * each client run started, for its extra streams to join). Every
+     * checkpoint is written to a temporary file, synced and renamed over the old one, so a crash
+     * leaves either the old or the new checkpoint but never half of one.
+     */
+    static class CheckpointStore {
+        private static final String SUFFIX = ".ckpt";
+        private final File dir;
+        private final long intervalNanos;
+        private final ConcurrentHashMap<String, Checkpoint> saved = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, Transfer> active = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, Transfer> attempts = new ConcurrentHashMap<>(); // by the client run that started them
+
+        CheckpointStore(File dir, long intervalNanos) throws IOException {
+            this.dir = dir;
+            this.intervalNanos = intervalNanos;
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create checkpoint directory " + dir);
+
+            // Uploads that were still going when the server last stopped
+            File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+            for (File f : files == null ? new File[0] : files) {
+                try {
+                    Checkpoint checkpoint = Checkpoint.read(f);
+                    if (Transfer.partFile(checkpoint.file()).isFile()) {
+                        saved.put(checkpoint.id(), checkpoint);
+                    } else {
+                        Files.deleteIfExists(f.toPath()); // the partial file is gone, nothing left to resume
+                    }
+                } catch (IOException e) {
+                    System.err.printf("Ignoring unreadable checkpoint %s: %s%n", f, e.getMessage());
+                }
+            }
+            if (!saved.isEmpty()) System.out.println("Loaded " + saved.size() + " resumable upload(s) from " + dir);
+        }
+
+        long intervalNanos() {
+            return intervalNanos;
+        }
+
+        Checkpoint get(String id) {
+            return saved.get(id);
+        }
+
+        void save(Checkpoint checkpoint) throws IOException {
+            File tmp = new File(dir, checkpoint.id() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                checkpoint.write(out);
+                out.getFD().sync();
+            }
+            Files.move(tmp.toPath(), new File(dir, checkpoint.id() + SUFFIX).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            saved.put(checkpoint.id(), checkpoint);
+        }
+
+        void remove(String id) throws IOException {
+            saved.remove(id);
+            Files.deleteIfExists(new File(dir, id + SUFFIX).toPath());
+        }
+
+        Transfer active(String id) {
+            return active.get(id);
+        }
+
+        Transfer attempt(String attempt) {
+            return attempts.get(attempt);
+        }
+
+        void activate(Transfer transfer) {
+            if (transfer.id != null) active.put(transfer.id, transfer);
+            if (transfer.attempt != null) attempts.put(transfer.attempt, transfer);
+        }
+
+        void deactivate(Transfer transfer) {
+            if (transfer.id != null) active.remove(transfer.id, transfer);
+            if (transfer.attempt != null) attempts.remove(transfer.attempt, transfer);
+        }
+    }
+
+    /**
+     * Fixed set of direct receive buffers shared by the receive loop and the sessions. Each datagram
+     * is received into one, handed to its ClientSession as is, and given back after the session has
+     * written it, so in steady state the receive path allocates nothing.
+     */
+    static class BufferPool {
+        private final BlockingQueue<ByteBuffer> free;
+
+        BufferPool(int count, int size) {
+            free = new ArrayBlockingQueue<>(count);
+            for (int i = 0; i < count; i++) free.offer(ByteBuffer.allocateDirect(size));
         }
 
-        public void sendAck() throws IOException {
-            Assignment2svr.sendAck(socket, key.address(), key.port());
+        // Falls back to the given buffer when every pooled one is still queued in a session
+        ByteBuffer acquire(ByteBuffer fallback) {
+            ByteBuffer buffer = free.poll();
+            return buffer != null ? buffer : fallback.clear();
         }
 
-        public long getTotalBytes() {
-            return totalBytes;
+        void release(ByteBuffer buffer) {
+            buffer.clear();
+            free.offer(buffer);
         }
     }
 }
@@ -0,0 +1,70 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Protocol — The wire format shared by the client and the server
+ * ----------------------------------------------------
+ * Every datagram, both ways, starts with the same fixed header of HEADER_SIZE bytes: 2-byte magic,
+ * version byte, opcode byte, 4-byte transfer number (0 unless the client socket multiplexes uploads),
+ * 4-byte sequence number, 8-byte file offset and a flags byte. In a data packet the flags say whether
+ * its chunk is deflated, in a reply they are the opcode of the packet it answers. With integrity on,
+ * data and parity packets have a CRC32C of the header and the data right after the header.
+ * Anything with the wrong magic or version is dropped.
+ *
+ * Both ends build and read their packets with these, so they can't disagree on the layout. What each
+ * opcode's body holds and how the exchanges go is described in Assignment2svr.
+ */
+final class Protocol {
+    static final short MAGIC = 0x5532; // "U2"
+    static final byte VERSION = 1;
+    static final int VERSION_AT = 2;
+    static final int OPCODE_AT = 3;
+    static final int TRANSFER_AT = 4; // a batch's uploads tell the server apart by their number here, 0 otherwise
+    static final int SEQ_AT = 8;
+    static final int OFFSET_AT = 12;
+    static final int FLAGS_AT = 20; // data packet flags, or in a reply the opcode of the packet it answers
+    static final int HEADER_SIZE = 21;
+    static final int CRC_SIZE = 4; // CRC32C right after the header, when integrity is on
+    static final int MAX_HEADER_SIZE = HEADER_SIZE + CRC_SIZE;
+    static final int MAX_DATAGRAM = 65507; // largest IPv4 UDP payload, so nothing gets truncated on receive
+    static final int MAX_PAYLOAD = MAX_DATAGRAM - MAX_HEADER_SIZE;
+    static final int MAX_ACK_SIZE = 1400; // handshake ACKs list resume ranges, but stay one unfragmented packet
+
+    static final byte OP_DATA = 1;
+    static final byte OP_PARITY = 2;
+    static final byte OP_START = 3; // the handshake, its body is the filename and option lines
+    static final byte OP_MANIFEST = 4;
+    static final byte OP_END = 5;
+    static final byte OP_PROBE = 6;
+    static final byte OP_GET = 7; // a download, its body is the filename and option lines
+    static final byte OP_ACK = 16;
+    static final byte OP_NACK = 17; // the packet arrived but failed verification
+    static final byte OP_RECOVERED = 18; // ACK for a packet that never arrived but was rebuilt from parity
+    static final int CONTROL_SEQ = -1; // sequence number of control packets and of the replies to them
+
+    // Features agreed in the handshake ACK
+    static final int FLAG_INTEGRITY = 1; // per-packet CRC32C and whole-file SHA-256
+    static final int FLAG_COMPRESS = 2; // data packets may carry deflated chunks
+    static final int FLAG_DEDUP = 4; // the client sends a manifest of block hashes before the data
+    static final int FLAG_FEC = 8; // the client follows groups of data packets with their parity
+
+    static final byte BLOCK_RAW = 0; // data packet flags: the chunk is as it is in the file
+    static final byte BLOCK_DEFLATED = 1; // or a raw deflate block of it
+    static final int MAX_SACK_RANGES = 16; // most SACK ranges in one data ACK, keeps it well inside one unfragmented packet
+    static final int PARITY_DESCRIPTOR = 4; // packet count of the group, ahead of the parity
+    static final int MAX_PARITY_GROUP = 64;
+    static final int DEDUP_BLOCK = 1024 * 1024; // blocks are the whole chunks that fit in this
+    static final int HASH_SIZE = 32; // SHA-256
+    static final int MAX_MANIFEST_BLOCKS = 64; // the ACK answers with one bit per block
+
+    private Protocol() {
+    }
+
+    static ByteBuffer putHeader(ByteBuffer buffer, byte opcode, int transfer, int seq, long offset, byte flags) {
+        return buffer.putShort(MAGIC).put(VERSION).put(opcode).putInt(transfer).putInt(seq).putLong(offset).put(flags);
+    }
+
+    // True for a datagram that starts with a header we understand
+    static boolean isFrame(ByteBuffer packet) {
+        return packet.remaining() >= HEADER_SIZE && packet.getShort(0) == MAGIC && packet.get(VERSION_AT) == VERSION;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * TimingWheel — Hashed timing wheel shared by the client and the server
+ * ----------------------------------------------------
+ * Timers hang off a ring of slots by the tick their deadline falls in (modulo the ring size), so
+ * scheduling and cancelling one is O(1) however many are pending, and nothing is sorted. A deadline
+ * more than one turn of the ring away just stays in its slot until its own tick comes round.
+ *
+ * Timers are intrusive list nodes: a class that needs a timer extends Timer, so scheduling never
+ * allocates. A timer is in at most one wheel at a time, and scheduling it again moves it.
+ * Deadlines are System.nanoTime() values, and a timer never fires before its deadline, only up to
+ * one tick after it. Not thread safe, each wheel belongs to one thread.
+ *
+ * The client keeps one per stream for the retransmit deadlines of its packets in flight. The server
+ * keeps one per receive shard for held back ACKs and for expiring sessions that went quiet.
+ */
+final class TimingWheel<T extends TimingWheel.Timer> {
+
+    static class Timer {
+        private TimingWheel<?> wheel; // null while not scheduled
+        private Timer prev;
+        private Timer next;
+        private long tick;
+
+        boolean isScheduled() {
+            return wheel != null;
+        }
+    }
+
+    private final long tickNanos;
+    private final Timer[] slots;
+    private final int mask;
+    private long currentTick; // every tick before this one has been expired
+    private int size = 0;
+
+    TimingWheel(long tickNanos, int slotCount, long now) {
+        if (Integer.bitCount(slotCount) != 1) throw new IllegalArgumentException("slotCount must be a power of two");
+        this.tickNanos = tickNanos;
+        this.slots = new Timer[slotCount];
+        this.mask = slotCount - 1;
+        this.currentTick = Math.floorDiv(now, tickNanos);
+    }
+
+    // Rounded up, so a timer never fires early
+    void schedule(T scheduled, long deadline) {
+        Timer timer = scheduled; // the fields aren't visible through T
+        cancel(timer);
+        timer.tick = Math.max(-Math.floorDiv(-deadline, tickNanos), currentTick);
+        int slot = (int) (timer.tick & mask);
+        timer.wheel = this;
+        timer.prev = null;
+        timer.next = slots[slot];
+        if (timer.next != null) timer.next.prev = timer;
+        slots[slot] = timer;
+        size++;
+    }
+
+    void cancel(Timer timer) {
+        if (timer.wheel != this) return;
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[(int) (timer.tick & mask)] = timer.next;
+        }
+        if (timer.next != null) timer.next.prev = timer.prev;
+        timer.wheel = null;
+        timer.prev = null;
+        timer.next = null;
+        size--;
+    }
+
+    /**
+     * Takes out and returns one timer whose deadline is at or before now, or null once there are none.
+     * Call it in a loop. The timer it returns is no longer scheduled, so it can be scheduled again.
+     */
+    @SuppressWarnings("unchecked")
+    T poll(long now) {
+        long target = Math.floorDiv(now, tickNanos);
+        if (size == 0) {
+            currentTick = Math.max(currentTick, target);
+            return null;
+        }
+        // Asleep for more than a turn of the ring: every slot may hold something due, look at each once
+        if (target - currentTick > mask) {
+            for (Timer head : slots) {
+                for (Timer timer = head; timer != null; timer = timer.next) {
+                    if (timer.tick <= target) {
+                        cancel(timer);
+                        return (T) timer;
+                    }
+                }
+            }
+            currentTick = target;
+            return null;
+        }
+        while (true) {
+            for (Timer timer = slots[(int) (currentTick & mask)]; timer != null; timer = timer.next) {
+                if (timer.tick <= currentTick) {
+                    cancel(timer);
+                    return (T) timer;
+                }
+            }
+            if (currentTick >= target) return null;
+            currentTick++;
+        }
+    }
+
+    /**
+     * When the earliest pending timer is due (a System.nanoTime() value), or Long.MAX_VALUE when none
+     * is pending. Looks at most one turn of the ring ahead, and answers with the end of that turn
+     * when everything pending is further off, so a caller waiting until then just asks again.
+     */
+    long nextDeadline() {
+        if (size == 0) return Long.MAX_VALUE;
+        for (long tick = currentTick; tick <= currentTick + mask; tick++) {
+            for (Timer timer = slots[(int) (tick & mask)]; timer != null; timer = timer.next) {
+                if (timer.tick <= tick) return tick * tickNanos;
+            }
+        }
+        return (currentTick + mask + 1) * tickNanos;
+    }
+
+    int size() {
+        return size;
+    }
+}
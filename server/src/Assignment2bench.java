@@ -0,0 +1,311 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Assignment2bench — Microbenchmarks for the hot paths of the client and server
+ * ----------------------------------------------------
+ * Measures the three paths every packet of an upload goes through:
+ *  - classify: the server's receive loop handling one datagram (ReceiveShard.receive): the
+ *    header check, the dispatch on its opcode and, for a data packet, its session and checks
+ *  - session.write: a ClientSession taking queued receive buffers and writing them to disk,
+ *    for different chunk sizes
+ *  - client.send: the client slicing chunks out of its FileSource and sending them
+ *    (InFlight.send), with and without the per-packet CRC32C
+ *
+ * Every benchmark runs some warmup iterations first, so the JIT has compiled the path, then the
+ * measured ones. The score is the mean throughput of the measured iterations, ± their standard
+ * deviation. Results go in the same "name score error unit" lines that --save writes, so a run
+ * can be compared with a saved baseline (see server/bench/baseline.txt):
+ *
+ *   java Assignment2bench --compare=../bench/baseline.txt
+ *
+ * or from server/, through the build: gradle bench (extra options in -PbenchArgs="...").
+ * Anything that got slower than the baseline by more than --tolerance percent is flagged, and the
+ * exit status is 1 if something was. Numbers are only comparable on the same machine and JVM.
+ */
+public class Assignment2bench {
+    private static final int WARMUP = 3; // default warmup iterations per benchmark
+    private static final int ITERATIONS = 5; // default measured iterations
+    private static final int TOLERANCE_PERCENT = 10; // default slowdown that counts as a regression
+    private static final int CLASSIFY_PACKETS = 4096; // distinct packets the classify benchmarks cycle through
+    private static final int CLASSIFY_ROUNDS = 2000; // passes over them per iteration
+    private static final int CONTROL_ROUNDS = 50; // every control packet is answered with a real send, so fewer passes
+    private static final int SENDERS = 256; // sessions in the map, and distinct senders for the many-senders case
+    private static final long FILE_BYTES = 64L * 1024 * 1024; // written or sent per iteration of the disk and send benchmarks
+    private static final int[] CHUNK_SIZES = {1024, 8192, Protocol.MAX_PAYLOAD};
+
+    // Everything a benchmark computes ends up here, so the JIT can't drop it as dead code
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options;
+        try {
+            options = Util.parseOptions(args, 0);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Usage: java Assignment2bench [--warmup=N] [--iterations=N] [--only=PREFIX]"
+                    + " [--save=FILE] [--compare=FILE] [--tolerance=PERCENT]");
+            System.exit(1);
+            return;
+        }
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", String.valueOf(WARMUP)));
+        int iterations = Integer.parseInt(options.getOrDefault("iterations", String.valueOf(ITERATIONS)));
+        String only = options.getOrDefault("only", "");
+
+        System.out.printf("# %s %s, %d cpus, %s %s%n", System.getProperty("java.vm.name"), System.getProperty("java.version"),
+                Runtime.getRuntime().availableProcessors(), System.getProperty("os.name"), System.getProperty("os.arch"));
+        System.out.printf("# %d warmup and %d measured iterations%n", warmup, iterations);
+
+        List<Result> results = new ArrayList<>();
+        File dir = Files.createTempDirectory("bench").toFile();
+        try {
+            for (Benchmark benchmark : benchmarks(dir)) {
+                if (!benchmark.name().startsWith(only)) continue;
+                Result result = measure(benchmark, warmup, iterations);
+                System.out.println(result);
+                results.add(result);
+            }
+        } finally {
+            for (File file : Objects.requireNonNull(dir.listFiles())) file.delete();
+            dir.delete();
+        }
+
+        if (options.containsKey("save")) {
+            try (PrintWriter out = new PrintWriter(new FileWriter(options.get("save")))) {
+                out.printf("# %s %s, %d cpus, %s %s%n", System.getProperty("java.vm.name"), System.getProperty("java.version"),
+                        Runtime.getRuntime().availableProcessors(), System.getProperty("os.name"), System.getProperty("os.arch"));
+                for (Result result : results) out.println(result);
+            }
+            System.out.println("Saved to " + options.get("save"));
+        }
+        if (options.containsKey("compare")) {
+            int tolerance = Integer.parseInt(options.getOrDefault("tolerance", String.valueOf(TOLERANCE_PERCENT)));
+            if (!compare(results, new File(options.get("compare")), tolerance)) System.exit(1);
+        }
+    }
+
+    private static List<Benchmark> benchmarks(File dir) throws IOException {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        benchmarks.add(new Benchmark("classify.data.oneSender", "Mpkt/s", () -> classify(dir, false, false)));
+        benchmarks.add(new Benchmark("classify.data.manySenders", "Mpkt/s", () -> classify(dir, false, true)));
+        benchmarks.add(new Benchmark("classify.control", "Mpkt/s", () -> classify(dir, true, false)));
+        for (int chunk : CHUNK_SIZES) {
+            benchmarks.add(new Benchmark("session.write." + chunk, "MB/s", () -> sessionWrite(dir, chunk)));
+        }
+        File source = new File(dir, "source.bin");
+        writeRandomFile(source, FILE_BYTES);
+        for (int chunk : CHUNK_SIZES) {
+            benchmarks.add(new Benchmark("client.send." + chunk, "MB/s", () -> clientSend(source, chunk, false)));
+            benchmarks.add(new Benchmark("client.send." + chunk + ".crc", "MB/s", () -> clientSend(source, chunk, true)));
+        }
+        return benchmarks;
+    }
+
+    // Benchmarks
+
+    private static final List<ByteBuffer> dataPackets = new ArrayList<>();
+    private static final List<ByteBuffer> controlPackets = new ArrayList<>();
+    private static final InetSocketAddress[] senders = new InetSocketAddress[SENDERS];
+    private static Assignment2svr.ReceiveShard shard; // shared by every benchmark that needs one
+
+    static {
+        for (int i = 0; i < SENDERS; i++) {
+            senders[i] = new InetSocketAddress(InetAddress.getLoopbackAddress(), 40000 + i);
+        }
+        // Control packets that need no session: an END for an upload that is already done, an empty manifest and a probe
+        byte[] controls = {Protocol.OP_END, Protocol.OP_MANIFEST, Protocol.OP_PROBE};
+        for (int i = 0; i < CLASSIFY_PACKETS; i++) {
+            ByteBuffer data = ByteBuffer.allocateDirect(Protocol.HEADER_SIZE + 1024);
+            Protocol.putHeader(data, Protocol.OP_DATA, 0, i, i * 1024L, (byte) 0).position(0);
+            dataPackets.add(data);
+            byte opcode = controls[i % controls.length];
+            ByteBuffer control = ByteBuffer.allocateDirect(Protocol.HEADER_SIZE + 8);
+            Protocol.putHeader(control, opcode, 0, -1, 0, (byte) 0);
+            if (opcode == Protocol.OP_MANIFEST) control.putInt(0).putInt(0);
+            controlPackets.add(control.flip());
+        }
+    }
+
+    // A shard whose receive loop never runs: the benchmarks call into it on their own thread, and it sends from its channel
+    private static Assignment2svr.ReceiveShard shard(File dir) throws IOException {
+        if (shard == null) {
+            Assignment2svr.ServerMetrics metrics = new Assignment2svr.ServerMetrics();
+            Assignment2svr.ServerConfig config = new Assignment2svr.ServerConfig(false, 512, 128, Assignment2svr.Durability.parse(Map.of()),
+                    new Assignment2svr.CheckpointStore(new File(dir, "checkpoints"), Long.MAX_VALUE),
+                    new Assignment2svr.ChunkIndex(new File(dir, "chunks.idx")), new Assignment2svr.OutputNames(),
+                    new Assignment2svr.BlockCache(0, metrics), metrics, 4, 2_000_000, 60_000_000_000L, 5_000_000_000L);
+            shard = new Assignment2svr.ReceiveShard(0, config, null, null);
+            // Every sender has an upload running. Its writer never starts, so its data is dropped for a full queue,
+            // once the receive path has done all its work
+            for (InetSocketAddress sender : senders) {
+                Assignment2svr.Transfer transfer = new Assignment2svr.Transfer(null, null, -1, 1024, new File(dir, "classify.bin"),
+                        false, false, false, false, null);
+                Assignment2svr.ClientKey key = Assignment2svr.ClientKey.of(sender);
+                shard.sessions.put(key, new Assignment2svr.ClientSession(shard, sender, key, transfer, true));
+            }
+        }
+        return shard;
+    }
+
+    /**
+     * The receive loop's work for each packet, through ReceiveShard.receive itself: the sender's key, the header check
+     * and the switch on the opcode, then for data the session lookup and its checks. One sender reuses the key like the
+     * loop does for back-to-back packets from the same client, many senders need a new key for every packet. Control
+     * packets come from a socket of our own, which gets the replies. Returns the packets handled.
+     */
+    private static long classify(File dir, boolean control, boolean manySenders) throws IOException {
+        Assignment2svr.ReceiveShard receiver = shard(dir);
+        List<ByteBuffer> packets = control ? controlPackets : dataPackets;
+        int rounds = control ? CONTROL_ROUNDS : CLASSIFY_ROUNDS;
+        long kept = 0;
+        try (DatagramChannel replies = DatagramChannel.open()) {
+            replies.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            SocketAddress controlSender = replies.getLocalAddress();
+            for (int round = 0; round < rounds; round++) {
+                for (int i = 0; i < packets.size(); i++) {
+                    ByteBuffer packet = packets.get(i);
+                    SocketAddress sender = control ? controlSender : senders[manySenders ? i % SENDERS : 0];
+                    if (receiver.receive(sender, packet.rewind(), false)) kept++;
+                }
+            }
+        }
+        sink += kept;
+        return (long) rounds * packets.size();
+    }
+
+    /**
+     * One main session writing a whole file, fed straight from its shard's buffer pool the way the
+     * receive loop feeds it: chunk-sized packets in file order, queued as fast as the session takes them.
+     * Returns the bytes written.
+     */
+    private static long sessionWrite(File dir, int chunkSize) throws Exception {
+        // Only the shard's buffer pool, channel (for the final ACK) and settings are used
+        Assignment2svr.ReceiveShard owner = shard(dir);
+        InetSocketAddress client = new InetSocketAddress(InetAddress.getLoopbackAddress(), 9); // discard port, for its final ACK
+        File file = new File(dir, "written.bin");
+        Assignment2svr.Transfer transfer = new Assignment2svr.Transfer(null, null, -1, chunkSize, file, false, false, false, false, null);
+        Assignment2svr.ClientSession session = new Assignment2svr.ClientSession(owner, client,
+                Assignment2svr.ClientKey.of(client), transfer, true);
+        transfer.addStream(session);
+
+        byte[] data = new byte[chunkSize];
+        new Random(chunkSize).nextBytes(data);
+        ByteBuffer scratch = ByteBuffer.allocateDirect(1);
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // the session prints a line when it is done
+        Thread writer = new Thread(session, "bench-writer");
+        writer.start();
+        try {
+            int seq = 0;
+            for (long offset = 0; offset < FILE_BYTES; offset += chunkSize) {
+                ByteBuffer packet;
+                while ((packet = owner.bufferPool.acquire(scratch)) == scratch) Thread.onSpinWait();
+                Protocol.putHeader(packet, Protocol.OP_DATA, 0, seq++, offset, (byte) 0).put(data).flip()
+                        .position(Protocol.HEADER_SIZE);
+                while (!session.queueData(packet)) Thread.onSpinWait();
+            }
+            session.finish(null);
+            writer.join();
+        } finally {
+            System.setOut(console);
+            file.delete();
+        }
+        return FILE_BYTES;
+    }
+
+    /**
+     * The client's send path for a whole file: every chunk goes through InFlight.send, straight out of
+     * the memory-mapped FileSource, to a local socket that never reads (the kernel drops what doesn't
+     * fit, after the send has done all its work). Returns the file bytes sent.
+     */
+    private static long clientSend(File source, int chunkSize, boolean integrity) throws IOException {
+        try (DatagramChannel sinkSocket = DatagramChannel.open();
+             DatagramChannel channel = DatagramChannel.open();
+             Assignment2cli.FileSource file = new Assignment2cli.FileSource(source, chunkSize)) {
+            sinkSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            channel.connect(sinkSocket.getLocalAddress());
+            Assignment2cli.Link link = new Assignment2cli.Link(channel);
+            ByteBuffer[] parts = {ByteBuffer.allocateDirect(Protocol.HEADER_SIZE + Protocol.CRC_SIZE), null};
+            CRC32C checksum = integrity ? new CRC32C() : null;
+            Assignment2cli.RttEstimator rtt = new Assignment2cli.RttEstimator(100, 4000, 5);
+            Assignment2cli.InFlight packet = new Assignment2cli.InFlight();
+            TimingWheel<Assignment2cli.InFlight> timers = new TimingWheel<>(1_000_000, 512, System.nanoTime());
+            int seq = 0;
+            for (long offset = 0; offset < file.length(); offset += chunkSize) {
+                packet.reset(seq++, offset, (int) Math.min(chunkSize, file.length() - offset));
+                sink += packet.send(link, parts, file, null, checksum, rtt, timers); // rearms the same timer every time
+            }
+            return file.length();
+        }
+    }
+
+    // Harness
+
+    private interface Workload {
+        long run() throws Exception; // does one iteration's work and returns how many units it did
+    }
+
+    private static record Benchmark(String name, String unit, Workload workload) {
+    }
+
+    private static record Result(String name, double score, double error, String unit) {
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-32s %12.3f %10.3f  %s", name, score, error, unit);
+        }
+    }
+
+    private static Result measure(Benchmark benchmark, int warmup, int iterations) throws Exception {
+        // Mega-units per second, which is also MB/s for the benchmarks that count bytes
+        double[] scores = new double[iterations];
+        for (int i = -warmup; i < iterations; i++) {
+            long start = System.nanoTime();
+            long units = benchmark.workload().run();
+            double score = units / ((System.nanoTime() - start) / 1e9) / 1e6;
+            if (i >= 0) scores[i] = score;
+        }
+        double mean = Arrays.stream(scores).average().orElse(0);
+        double variance = Arrays.stream(scores).map(score -> (score - mean) * (score - mean)).sum() / Math.max(1, iterations - 1);
+        return new Result(benchmark.name(), mean, Math.sqrt(variance), benchmark.unit());
+    }
+
+    // Prints every result next to its baseline. Returns false if any is slower by more than the tolerance
+    private static boolean compare(List<Result> results, File baselineFile, int tolerance) throws IOException {
+        Map<String, Double> baseline = new HashMap<>();
+        for (String line : Files.readAllLines(baselineFile.toPath())) {
+            String[] fields = line.trim().split("\\s+");
+            if (line.startsWith("#") || fields.length < 4) continue;
+            baseline.put(fields[0], Double.parseDouble(fields[1]));
+        }
+        boolean ok = true;
+        System.out.println("# compared with " + baselineFile);
+        for (Result result : results) {
+            Double before = baseline.get(result.name());
+            if (before == null) {
+                System.out.printf(Locale.ROOT, "%-32s %12.3f  (not in baseline)%n", result.name(), result.score());
+                continue;
+            }
+            double change = (result.score() - before) / before * 100;
+            boolean regressed = change < -tolerance;
+            ok &= !regressed;
+            System.out.printf(Locale.ROOT, "%-32s %12.3f %12.3f %+8.1f%%%s%n", result.name(), before, result.score(), change,
+                    regressed ? "  REGRESSION" : "");
+        }
+        return ok;
+    }
+
+    private static void writeRandomFile(File file, long size) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        Random random = new Random(1);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+}
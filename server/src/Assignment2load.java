@@ -0,0 +1,370 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Assignment2load — End-to-end load generator for Assignment2svr
+ * ----------------------------------------------------
+ * Runs many uploads at once from one process, each through Assignment2cli.upload with its own
+ * sockets, so the server sees them as separate clients. By default they all go through a local
+ * UDP proxy that impairs the traffic in both directions: it can drop, delay (with jitter),
+ * duplicate and reorder datagrams. That way protocol changes can be judged on one machine under
+ * network conditions closer to a real one than loopback.
+ *
+ * At the end it reports how many uploads completed, the aggregate throughput, percentiles of the
+ * upload completion times, and how many packets had to be retransmitted.
+ *
+ * Any option it doesn't know is passed on to every client, e.g.
+ *   java Assignment2load 127.0.0.1 5000 --uploads=50 --clients=10 --size=4M --loss=2 --delay-ms=5 --jitter-ms=3 --window=64
+ *
+ * The server itself is started separately, as usual. Files are generated in a temp directory and
+ * deleted again, the server keeps its copies.
+ */
+public class Assignment2load {
+    private static final int CLIENTS = 8; // default uploads running at once
+    private static final String SIZE = "1M"; // default file size
+    private static final int HANDSHAKE_ACK_SIZE = Protocol.HEADER_SIZE + 16; // header, payload size, data port, range count, flags
+    private static final int DATA_PORT_OFFSET = Protocol.HEADER_SIZE + 4; // where the data port sits in a handshake ACK
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java Assignment2load <server_ip> <port> [--clients=N] [--uploads=N] [--size=BYTES[K|M|G]]"
+                    + " [--loss=PERCENT] [--delay-ms=MS] [--jitter-ms=MS] [--duplicate=PERCENT] [--reorder=PERCENT]"
+                    + " [--no-proxy] [--seed=N] [client options...]");
+            System.exit(1);
+        }
+        String serverIP = args[0];
+        int serverPort = Integer.parseInt(args[1]);
+        Map<String, String> options = new HashMap<>();
+        Map<String, String> clientOptions = new HashMap<>();
+        clientOptions.put("progress-ms", "0");
+        Set<String> ours = Set.of("clients", "uploads", "size", "loss", "delay-ms", "jitter-ms", "duplicate", "reorder", "no-proxy", "seed");
+        Util.parseOptions(args, 2).forEach((name, value) -> (ours.contains(name) ? options : clientOptions).put(name, value));
+        int clients = Integer.parseInt(options.getOrDefault("clients", String.valueOf(CLIENTS)));
+        int uploads = Integer.parseInt(options.getOrDefault("uploads", String.valueOf(clients)));
+        long size = Util.parseBytes(options.getOrDefault("size", SIZE));
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+
+        File dir = Files.createTempDirectory("load").toFile();
+        List<File> files = new ArrayList<>();
+        Random random = new Random(seed);
+        for (int i = 0; i < uploads; i++) {
+            File file = new File(dir, "load-" + i + ".bin");
+            writeRandomFile(file, size, random);
+            files.add(file);
+        }
+
+        ImpairmentProxy proxy = null;
+        int port = serverPort;
+        if (!options.containsKey("no-proxy")) {
+            proxy = new ImpairmentProxy(new InetSocketAddress(InetAddress.getByName(serverIP), serverPort),
+                    percent(options.get("loss")), Long.parseLong(options.getOrDefault("delay-ms", "0")),
+                    Long.parseLong(options.getOrDefault("jitter-ms", "0")), percent(options.get("duplicate")),
+                    percent(options.get("reorder")), seed);
+            port = proxy.port();
+            System.out.printf("Impairment proxy on port %d: %s%n", port, proxy.describe());
+        }
+        System.out.printf("Running %d upload(s) of %d bytes, %d at a time, client options %s%n", uploads, size, clients, clientOptions);
+
+        // The clients print as much as they do from the command line, times every upload. Only our report is wanted here
+        PrintStream console = System.out;
+        PrintStream consoleErr = System.err;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<Outcome>> outcomes = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            int target = port;
+            for (File file : files) {
+                outcomes.add(pool.submit(() -> run(serverIP, target, file, clientOptions)));
+            }
+            for (Future<Outcome> outcome : outcomes) outcome.get();
+        } finally {
+            pool.shutdownNow();
+            System.setOut(console);
+            System.setErr(consoleErr);
+            if (proxy != null) proxy.close();
+            for (File file : files) file.delete();
+            dir.delete();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        List<Outcome> results = new ArrayList<>();
+        for (Future<Outcome> outcome : outcomes) results.add(outcome.get());
+        boolean allCompleted = report(results, size, seconds, proxy);
+        System.exit(allCompleted ? 0 : 1);
+    }
+
+    private static record Outcome(File file, long nanos, Assignment2cli.TransferStats stats, String error) {
+    }
+
+    private static Outcome run(String serverIP, int port, File file, Map<String, String> clientOptions) {
+        long start = System.nanoTime();
+        try {
+            Assignment2cli.TransferStats stats = Assignment2cli.upload(serverIP, port, file, clientOptions);
+            return new Outcome(file, System.nanoTime() - start, stats, null);
+        } catch (Exception e) {
+            return new Outcome(file, System.nanoTime() - start, null, e.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+    }
+
+    private static boolean report(List<Outcome> results, long size, double seconds, ImpairmentProxy proxy) {
+        List<Long> times = new ArrayList<>();
+        long packets = 0;
+        long wireBytes = 0;
+        long retransmits = 0;
+        long nacks = 0;
+        long fast = 0;
+        long acks = 0;
+        long parity = 0;
+        long recovered = 0;
+        for (Outcome outcome : results) {
+            if (outcome.error() != null) {
+                System.out.printf("Upload of %s failed after %.2fs: %s%n", outcome.file().getName(), outcome.nanos() / 1e9, outcome.error());
+                continue;
+            }
+            times.add(outcome.nanos());
+            packets += outcome.stats().getPacketsSent();
+            wireBytes += outcome.stats().getBytesSent();
+            retransmits += outcome.stats().getRetransmits();
+            nacks += outcome.stats().getNacks();
+            fast += outcome.stats().getFastRetransmits();
+            acks += outcome.stats().getAcks();
+            parity += outcome.stats().getParityPackets();
+            recovered += outcome.stats().getPacketsRecovered();
+        }
+        Collections.sort(times);
+        int completed = times.size();
+        System.out.printf("Uploads: %d of %d completed in %.2fs%n", completed, results.size(), seconds);
+        System.out.printf("Throughput: %.2f MB/s of file data, %.2f MB/s on the wire%n",
+                completed * (double) size / seconds / (1024 * 1024), wireBytes / seconds / (1024 * 1024));
+        if (completed > 0) {
+            System.out.printf("Completion time: p50 %.3fs p90 %.3fs p99 %.3fs max %.3fs%n", percentile(times, 0.50),
+                    percentile(times, 0.90), percentile(times, 0.99), times.get(completed - 1) / 1e9);
+        }
+        System.out.printf("Retransmits: %d of %d packets sent (%.2f%%), %d of them after a NACK, %d fast (SACK)%n", retransmits,
+                packets, packets == 0 ? 0.0 : retransmits * 100.0 / packets, nacks, fast);
+        System.out.printf("ACKs: %d for %d packets sent (%.1f packets per ACK)%n", acks, packets, acks == 0 ? 0.0 : packets / (double) acks);
+        if (parity > 0) System.out.printf("FEC: %d parity packets sent, %d lost packets rebuilt from parity%n", parity, recovered);
+        if (proxy != null) System.out.println(proxy);
+        return completed == results.size();
+    }
+
+    // Nearest rank, in seconds
+    private static double percentile(List<Long> sorted, double fraction) {
+        int rank = (int) Math.ceil(fraction * sorted.size());
+        return sorted.get(Math.max(0, rank - 1)) / 1e9;
+    }
+
+    private static double percent(String value) {
+        return value == null ? 0 : Double.parseDouble(value) / 100;
+    }
+
+    private static void writeRandomFile(File file, long size, Random random) throws IOException {
+        byte[] block = new byte[64 * 1024];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    /**
+     * A UDP relay between the clients and the server. Every client address gets its own upstream
+     * socket, so the server still tells the clients apart. Datagrams in both directions go through
+     * the same impairments: a loss probability, a delay plus uniform jitter, a chance of being
+     * duplicated, and a chance of being held back an extra delay so later ones overtake it.
+     * One thread receives (from every socket, through a selector) and decides each datagram's fate,
+     * another sends whatever is due.
+     * The server may answer a handshake with a different data port (one receive shard per port), so
+     * the relay follows it: it remembers the port for that client and puts its own port in the ACK.
+     */
+    private static class ImpairmentProxy implements Closeable {
+        private static final long REORDER_NANOS = TimeUnit.MILLISECONDS.toNanos(5); // how far a reordered datagram falls behind
+
+        private final InetSocketAddress server;
+        private final double loss;
+        private final long delayNanos;
+        private final long jitterNanos;
+        private final double duplicate;
+        private final double reorder;
+        private final Random random;
+        private final DatagramChannel front;
+        private final Selector selector;
+        private final Map<SocketAddress, Route> routes = new HashMap<>(); // by client address, receive thread only
+        private final DelayQueue<Delivery> due = new DelayQueue<>();
+        private final Thread receiver;
+        private final Thread sender;
+        private final LongAdder forwarded = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder duplicated = new LongAdder();
+        private final LongAdder reordered = new LongAdder();
+        private volatile boolean running = true;
+
+        // One client as the server sees it
+        private static class Route {
+            final SocketAddress client;
+            final DatagramChannel upstream;
+            InetSocketAddress target;
+
+            Route(SocketAddress client, DatagramChannel upstream, InetSocketAddress target) {
+                this.client = client;
+                this.upstream = upstream;
+                this.target = target;
+            }
+        }
+
+        private static record Delivery(long at, DatagramChannel channel, SocketAddress to, ByteBuffer data) implements Delayed {
+            @Override
+            public long getDelay(TimeUnit unit) {
+                return unit.convert(at - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public int compareTo(Delayed other) {
+                return Long.compare(at, ((Delivery) other).at);
+            }
+        }
+
+        ImpairmentProxy(InetSocketAddress server, double loss, long delayMs, long jitterMs, double duplicate, double reorder,
+                        long seed) throws IOException {
+            this.server = server;
+            this.loss = loss;
+            this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMs);
+            this.jitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMs);
+            this.duplicate = duplicate;
+            this.reorder = reorder;
+            this.random = new Random(seed);
+            this.front = DatagramChannel.open(StandardProtocolFamily.INET);
+            front.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            front.configureBlocking(false);
+            this.selector = Selector.open();
+            front.register(selector, SelectionKey.OP_READ);
+            this.receiver = new Thread(this::receive, "proxy-receive");
+            this.sender = new Thread(this::sendDue, "proxy-send");
+            receiver.start();
+            sender.start();
+        }
+
+        int port() {
+            return ((InetSocketAddress) front.socket().getLocalSocketAddress()).getPort();
+        }
+
+        String describe() {
+            return String.format("loss %.1f%%, delay %dms, jitter %dms, duplicate %.1f%%, reorder %.1f%%", loss * 100,
+                    TimeUnit.NANOSECONDS.toMillis(delayNanos), TimeUnit.NANOSECONDS.toMillis(jitterNanos), duplicate * 100, reorder * 100);
+        }
+
+        private void receive() {
+            ByteBuffer buffer = ByteBuffer.allocate(Protocol.MAX_DATAGRAM);
+            try {
+                while (running) {
+                    selector.select(100);
+                    for (Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext(); ) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        DatagramChannel channel = (DatagramChannel) key.channel();
+                        SocketAddress from;
+                        while ((from = channel.receive(buffer.clear())) != null) {
+                            buffer.flip();
+                            if (channel == front) {
+                                Route route = routes.get(from);
+                                if (route == null) route = open(from);
+                                impair(route.upstream, route.target, buffer);
+                            } else {
+                                Route route = (Route) key.attachment();
+                                followDataPort(route, buffer);
+                                impair(front, route.client, buffer);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (running) System.err.println("Proxy stopped: " + e.getMessage());
+            }
+        }
+
+        private Route open(SocketAddress client) throws IOException {
+            DatagramChannel upstream = DatagramChannel.open(StandardProtocolFamily.INET);
+            upstream.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            upstream.configureBlocking(false);
+            Route route = new Route(client, upstream, server);
+            upstream.register(selector, SelectionKey.OP_READ, route);
+            routes.put(client, route);
+            return route;
+        }
+
+        // An ACK that answers a START is a handshake ACK
+        private void followDataPort(Route route, ByteBuffer reply) {
+            if (reply.remaining() < HANDSHAKE_ACK_SIZE || !Protocol.isFrame(reply)
+                    || reply.get(Protocol.OPCODE_AT) != Protocol.OP_ACK
+                    || reply.get(Protocol.FLAGS_AT) != Protocol.OP_START) return;
+            int dataPort = reply.getInt(DATA_PORT_OFFSET);
+            route.target = new InetSocketAddress(server.getAddress(), dataPort);
+            reply.putInt(DATA_PORT_OFFSET, port());
+        }
+
+        private void impair(DatagramChannel channel, SocketAddress to, ByteBuffer datagram) {
+            if (random.nextDouble() < loss) {
+                dropped.increment();
+                return;
+            }
+            long at = System.nanoTime() + delayNanos + (jitterNanos > 0 ? (long) (random.nextDouble() * jitterNanos) : 0);
+            if (random.nextDouble() < reorder) {
+                at += REORDER_NANOS;
+                reordered.increment();
+            }
+            ByteBuffer copy = ByteBuffer.allocate(datagram.remaining()).put(datagram).flip();
+            due.add(new Delivery(at, channel, to, copy));
+            if (random.nextDouble() < duplicate) {
+                due.add(new Delivery(at + 1, channel, to, copy.duplicate()));
+                duplicated.increment();
+            }
+        }
+
+        private void sendDue() {
+            while (running) {
+                try {
+                    Delivery delivery = due.poll(100, TimeUnit.MILLISECONDS);
+                    if (delivery == null) continue;
+                    delivery.channel().send(delivery.data(), delivery.to());
+                    forwarded.increment();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    // a socket that closed under us, the datagram is lost like any other
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            running = false;
+            sender.interrupt();
+            selector.wakeup();
+            try {
+                receiver.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Route route : routes.values()) route.upstream.close();
+            selector.close();
+            front.close();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Proxy: %d datagrams forwarded, %d dropped, %d duplicated, %d reordered",
+                    forwarded.sum(), dropped.sum(), duplicated.sum(), reordered.sum());
+        }
+    }
+}
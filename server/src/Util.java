@@ -0,0 +1,78 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Util — Small helpers the client, the server and the load generator all use
+ * ----------------------------------------------------
+ * Command line options, byte sizes with a K, M or G suffix, SHA-256 digests and a latency histogram.
+ */
+final class Util {
+    private Util() {
+    }
+
+    // Optional flags are given after the positional arguments in the form --name=value
+    static Map<String, String> parseOptions(String[] args, int from) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = from; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            int eq = arg.indexOf('=');
+            if (eq == -1) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+        return options;
+    }
+
+    // Bytes with an optional K, M or G suffix (powers of 1024), e.g. --memory-budget=64M
+    static long parseBytes(String value) {
+        String v = value.trim().toUpperCase();
+        long multiplier = 1;
+        if (v.endsWith("K")) multiplier = 1024;
+        else if (v.endsWith("M")) multiplier = 1024 * 1024;
+        else if (v.endsWith("G")) multiplier = 1024 * 1024 * 1024;
+        if (multiplier != 1) v = v.substring(0, v.length() - 1);
+        return Long.parseLong(v) * multiplier;
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM has SHA-256", e);
+        }
+    }
+
+    /**
+     * Lock-free latency histogram with a bucket per power of two nanoseconds. Percentiles come back
+     * as the upper edge of their bucket, so within a factor of two, which is plenty to spot a stall.
+     * The client times its ACKs with one, the server its writer batches.
+     */
+    static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        void record(long nanos) {
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(1, nanos)) - 1);
+        }
+
+        long percentile(double fraction) {
+            long total = 0;
+            for (int i = 0; i < 64; i++) total += buckets.get(i);
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return i >= 62 ? Long.MAX_VALUE : (2L << i) - 1;
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+}